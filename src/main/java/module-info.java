@@ -20,6 +20,10 @@ open module yokwe.util {
 	requires org.apache.httpcomponents.core5.httpcore5.h2;
 	requires org.apache.httpcomponents.client5.httpclient5;
 	
+	// content encoding br and zstd
+	requires dec;
+	requires aircompressor;
+	
 	// json from jakarta ee
 	requires transitive jakarta.json;
 	requires transitive jakarta.json.bind;
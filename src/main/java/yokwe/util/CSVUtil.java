@@ -3,11 +3,12 @@ package yokwe.util;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.Writer;
@@ -33,6 +34,7 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 public class CSVUtil {
@@ -56,17 +58,11 @@ public class CSVUtil {
 	public static final LocalDateTime NULL_LOCAL_DATE_TIME = LocalDateTime.of(NULL_LOCAL_DATE, NULL_LOCAL_TIME);
 
 	private static class ClassInfo {
-		private static Map<String, ClassInfo> map = new TreeMap<>();
+		// ClassInfo is used from many threads like Storage.LoadSaveDirectoryList.loadAll()
+		private static Map<String, ClassInfo> map = new ConcurrentHashMap<>();
 		
 		static ClassInfo get(Class<?> clazz) {
-			String key = clazz.getName();
-			if (map.containsKey(key)) {
-				return map.get(key);
-			} else {
-				ClassInfo value = new ClassInfo(clazz);
-				map.put(key, value);
-				return value;
-			}
+			return map.computeIfAbsent(clazz.getName(), o -> new ClassInfo(clazz));
 		}
 
 		final Class<?>       clazz;
@@ -367,6 +363,10 @@ public class CSVUtil {
 		private boolean withHeader = true;
 		private char    separator  = ',';
 		private Charset charset    = Charset.defaultCharset();
+		private boolean atomic     = false;
+		private boolean sync       = false;
+		// null means compression is chosen from extension of file
+		private Compression compression = null;
 	}
 	
 	public static <E> Read<E> read(Class<E> clazz) {
@@ -392,6 +392,10 @@ public class CSVUtil {
 			context.charset = newValue;
 			return this;
 		}
+		public Read<E> withCompression(Compression newValue) {
+			context.compression = newValue;
+			return this;
+		}
 
 		private void readHeader(BufferedReader br, char separator) {
 			String[] names = parseLine(br, separator);
@@ -560,7 +564,10 @@ public class CSVUtil {
 			if (!file.exists()) return null;
 			if (file.length() == 0) return null;
 			try {
-				return file(new FileReader(file, context.charset));
+				Compression compression = Compression.getInstance(context.compression, file);
+				if (compression == Compression.NONE) return file(new FileReader(file, context.charset));
+				// decompress as stream
+				return file(new InputStreamReader(compression.decompress(new FileInputStream(file)), context.charset));
 			} catch (IOException e) {
 				String exceptionName = e.getClass().getSimpleName();
 				logger.error("{} {}", exceptionName, e);
@@ -621,6 +628,20 @@ public class CSVUtil {
 			context.withHeader = newValue;
 			return this;
 		}
+		// write to temporary file and rename. see FileUtil.writeFile()
+		public Write<E> withAtomic(boolean newValue) {
+			context.atomic = newValue;
+			return this;
+		}
+		// force content to storage device
+		public Write<E> withSync(boolean newValue) {
+			context.sync = newValue;
+			return this;
+		}
+		public Write<E> withCompression(Compression newValue) {
+			context.compression = newValue;
+			return this;
+		}
 		
 		private void writeHeader(BufferedWriter bw) {
 			try {
@@ -753,16 +774,10 @@ public class CSVUtil {
 			}
 		}
 		public void file(File file, Collection<E> collection) {
-			// Create parent folder if not exists
-			{
-				File parent = file.getParentFile();
-				if (!parent.exists()) {
-					parent.mkdirs();
-				}
-			}
-			
 			try {
-				file(new FileWriter(file), collection);
+				Compression compression = Compression.getInstance(context.compression, file);
+				// close of writer in file(Writer, Collection) writes end of compressed data. os is not closed
+				FileUtil.writeFile(file, context.atomic, context.sync, os -> file(new OutputStreamWriter(compression.compress(os), context.charset), collection));
 			} catch (IOException e) {
 				String exceptionName = e.getClass().getSimpleName();
 				logger.error("{} {}", exceptionName, e);
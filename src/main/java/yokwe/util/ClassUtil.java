@@ -20,7 +20,7 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.stream.Collectors;
@@ -173,17 +173,11 @@ public final class ClassUtil {
 		}
 	}
 	
-	private static Map<String, ClassInfo> map = new TreeMap<>();
+	// getClassInfo is called from many threads
+	private static Map<String, ClassInfo> map = new ConcurrentHashMap<>();
 	//                 typename
 	public static ClassInfo getClassInfo(Class<?> clazz) {
-		var name = clazz.getTypeName();
-		if (map.containsKey(name)) {
-			return map.get(name);
-		} else {
-			var classInfo = new ClassInfo(clazz);
-			map.put(name, classInfo);
-			return classInfo;
-		}
+		return map.computeIfAbsent(clazz.getTypeName(), o -> new ClassInfo(clazz));
 	}
 	
 	public static Object getInstance(Class<?> clazz, Object... args) {
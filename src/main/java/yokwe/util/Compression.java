@@ -0,0 +1,64 @@
+package yokwe.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import io.airlift.compress.zstd.ZstdInputStream;
+import io.airlift.compress.zstd.ZstdOutputStream;
+
+//
+// Compression of file used by FileUtil.Read/Write and CSVUtil.Read/Write
+//   Compression is chosen from extension of file name like "foo.csv.gz" unless specified with withCompression().
+//   Content is compressed and decompressed as stream. Uncompressed copy of file is never made.
+//
+public enum Compression {
+	NONE(""),
+	GZIP(".gz"),
+	ZSTD(".zst");
+	
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	public final String extension;
+	
+	Compression(String extension) {
+		this.extension = extension;
+	}
+	
+	public static Compression getInstance(File file) {
+		String name = file.getName();
+		for(var e: values()) {
+			if (e != NONE && name.endsWith(e.extension)) return e;
+		}
+		return NONE;
+	}
+	// returns compression of file if compression is null
+	static Compression getInstance(Compression compression, File file) {
+		return compression == null ? getInstance(file) : compression;
+	}
+	
+	public InputStream decompress(InputStream is) throws IOException {
+		switch(this) {
+		case GZIP:
+			return new GZIPInputStream(is, BUFFER_SIZE);
+		case ZSTD:
+			return new ZstdInputStream(is);
+		default:
+			return is;
+		}
+	}
+	// close of returned stream writes end of compressed data and closes os
+	public OutputStream compress(OutputStream os) throws IOException {
+		switch(this) {
+		case GZIP:
+			return new GZIPOutputStream(os, BUFFER_SIZE);
+		case ZSTD:
+			return new ZstdOutputStream(os);
+		default:
+			return os;
+		}
+	}
+}
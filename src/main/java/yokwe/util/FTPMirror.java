@@ -0,0 +1,236 @@
+package yokwe.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import org.apache.commons.net.ftp.FTPFile;
+
+//
+// Mirror remote ftp directory to local directory
+//   List remote directory with MLSD (or LIST if server doesn't support MLSD)
+//   Compare size and mtime of remote file with manifest of previous run or local file
+//   Download only changed file in parallel using pooled session of FTPUtil
+//   Save manifest for next run
+//
+public class FTPMirror {
+	private static final org.slf4j.Logger logger = yokwe.util.LoggerUtil.getLogger();
+	
+	public static final String DEFAULT_MANIFEST_NAME = ".ftp-mirror.csv";
+	
+	private static final int DEFAULT_THREAD_COUNT = 4;
+	
+	// line of manifest. path is relative to remote directory
+	public static class Entry implements Comparable<Entry> {
+		public String path;
+		public long   size;
+		public long   mtime; // epoch milli of remote file. 0 means unknown
+		
+		public Entry() {
+			this("", 0, 0);
+		}
+		public Entry(String path, long size, long mtime) {
+			this.path  = path;
+			this.size  = size;
+			this.mtime = mtime;
+		}
+		
+		@Override
+		public int compareTo(Entry that) {
+			return this.path.compareTo(that.path);
+		}
+		@Override
+		public String toString() {
+			return String.format("{%s %d %d}", path, size, mtime);
+		}
+	}
+	
+	public static class Report {
+		public final int listCount;
+		public final int changedCount;
+		public final int failedCount;
+		
+		private Report(int listCount, int changedCount, int failedCount) {
+			this.listCount    = listCount;
+			this.changedCount = changedCount;
+			this.failedCount  = failedCount;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("{list %d  changed %d  failed %d}", listCount, changedCount, failedCount);
+		}
+	}
+	
+	private final String remoteURL; // ends with "/"
+	private final File   localDir;
+	
+	private File              manifestFile;
+	private int               threadCount = DEFAULT_THREAD_COUNT;
+	private boolean           recursive   = false;
+	private Predicate<String> filter      = o -> true; // test relative path of remote file
+	
+	public FTPMirror(String remoteURL, File localDir) {
+		this.remoteURL    = remoteURL.endsWith("/") ? remoteURL : remoteURL + "/";
+		this.localDir     = localDir;
+		this.manifestFile = new File(localDir, DEFAULT_MANIFEST_NAME);
+	}
+	public FTPMirror(String remoteURL, Storage storage) {
+		this(remoteURL, storage.getFile());
+	}
+	
+	public FTPMirror withManifestFile(File newValue) {
+		manifestFile = newValue;
+		return this;
+	}
+	public FTPMirror withThreadCount(int newValue) {
+		threadCount = newValue;
+		return this;
+	}
+	public FTPMirror withRecursive(boolean newValue) {
+		recursive = newValue;
+		return this;
+	}
+	public FTPMirror withFilter(Predicate<String> newValue) {
+		filter = newValue;
+		return this;
+	}
+	
+	
+	//
+	// list remote file
+	//
+	public List<Entry> list() {
+		FTPUtil.Target  target  = new FTPUtil.Target(URLUtil.toURL(remoteURL + "."));
+		FTPUtil.Session session = null;
+		try {
+			session = FTPUtil.acquireSession(target);
+			// MLSD returns exact size and mtime. LIST is fallback for old server
+			boolean useMLSD = session.ftpClient.hasFeature("MLSD");
+			
+			List<Entry> ret = new ArrayList<>();
+			list(session, useMLSD, target.directoryName, "", ret);
+			// after list, current directory of session is unknown
+			session.currentDirectory = null;
+			
+			FTPUtil.releaseSession(session);
+			session = null;
+			return ret;
+		} catch (IOException e) {
+			String exceptionName = e.getClass().getSimpleName();
+			logger.error("{} {}", exceptionName, e);
+			throw new UnexpectedException(exceptionName, e);
+		} finally {
+			if (session != null) session.close();
+		}
+	}
+	private void list(FTPUtil.Session session, boolean useMLSD, String directory, String prefix, List<Entry> list) throws IOException {
+		FTPFile[] files = useMLSD ? session.ftpClient.mlistDir(directory) : session.ftpClient.listFiles(directory);
+		if (files == null) return;
+		
+		for(var file: files) {
+			if (file == null) continue; // entry that cannot be parsed
+			String name = file.getName();
+			if (name.equals(".") || name.equals("..")) continue;
+			
+			String path = prefix + name;
+			if (file.isDirectory()) {
+				if (recursive) list(session, useMLSD, join(directory, name), path + "/", list);
+			} else if (file.isFile()) {
+				if (!filter.test(path)) continue;
+				long mtime = file.getTimestamp() == null ? 0 : file.getTimestamp().getTimeInMillis();
+				list.add(new Entry(path, file.getSize(), mtime));
+			}
+		}
+	}
+	// join directory and name without doubling "/" of root directory
+	private static String join(String directory, String name) {
+		return directory.endsWith("/") ? directory + name : directory + "/" + name;
+	}
+	// percent-encode each segment of relative path. name can contain character like '#', '?', '%' and space
+	private static String encodePath(String path) {
+		return Arrays.stream(path.split("/", -1)).map(o -> URLEncoder.encode(o, StandardCharsets.UTF_8).replace("+", "%20")).collect(Collectors.joining("/"));
+	}
+	
+	
+	//
+	// manifest
+	//
+	public Map<String, Entry> loadManifest() {
+		Map<String, Entry> ret = new HashMap<>();
+		List<Entry> list = CSVUtil.read(Entry.class).file(manifestFile);
+		if (list != null) {
+			for(var e: list) ret.put(e.path, e);
+		}
+		return ret;
+	}
+	private void saveManifest(Map<String, Entry> map) {
+		List<Entry> list = new ArrayList<>(map.values());
+		list.sort(null);
+		CSVUtil.write(Entry.class).file(manifestFile, list);
+	}
+	
+	
+	//
+	// returns true if remote file need to be downloaded
+	//
+	private boolean isChanged(Entry remote, Entry manifest, File localFile) {
+		if (!localFile.exists())               return true;
+		if (localFile.length() != remote.size) return true;
+		
+		if (manifest != null) {
+			// compare with value of previous run. mtime of LIST is not exact but consistent between run
+			return manifest.size != remote.size || manifest.mtime != remote.mtime;
+		} else {
+			// no manifest. local file has mtime of remote file after download
+			return remote.mtime == 0 || localFile.lastModified() != remote.mtime;
+		}
+	}
+	
+	public Report sync() {
+		List<Entry>        remoteList  = list();
+		Map<String, Entry> manifestMap = loadManifest();
+		
+		Map<String, File>  downloadMap    = new LinkedHashMap<>();
+		Map<String, Entry> entryMap       = new HashMap<>();
+		Map<String, Entry> newManifestMap = new HashMap<>();
+		for(var remote: remoteList) {
+			File localFile = new File(localDir, remote.path);
+			if (isChanged(remote, manifestMap.get(remote.path), localFile)) {
+				String urlString = remoteURL + encodePath(remote.path);
+				downloadMap.put(urlString, localFile);
+				entryMap.put(urlString, remote);
+			} else {
+				newManifestMap.put(remote.path, remote);
+			}
+		}
+		logger.info("sync  {}  list {}  changed {}", remoteURL, remoteList.size(), downloadMap.size());
+		
+		Set<String> failedSet = downloadMap.isEmpty() ? Set.of() : new HashSet<>(FTPUtil.download(downloadMap, threadCount));
+		for(var e: downloadMap.entrySet()) {
+			if (failedSet.contains(e.getKey())) continue;
+			
+			Entry remote = entryMap.get(e.getKey());
+			if (remote.mtime != 0) FileUtil.setLastModified(e.getValue(), Instant.ofEpochMilli(remote.mtime));
+			newManifestMap.put(remote.path, remote);
+		}
+		// failed file is not in manifest. it will be downloaded in next run
+		saveManifest(newManifestMap);
+		
+		Report report = new Report(remoteList.size(), downloadMap.size(), failedSet.size());
+		logger.info("sync  {}  {}", remoteURL, report);
+		return report;
+	}
+}
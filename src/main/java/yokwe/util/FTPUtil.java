@@ -1,12 +1,25 @@
 package yokwe.util;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.SocketException;
 import java.net.URL;
+import java.net.URLDecoder;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.net.ftp.FTP;
 import org.apache.commons.net.ftp.FTPClient;
@@ -15,124 +28,263 @@ import org.apache.commons.net.ftp.FTPReply;
 
 public class FTPUtil {
 	private static final org.slf4j.Logger logger = yokwe.util.LoggerUtil.getLogger();
-
+	
 	private static final String  DEFAULT_USERNAME = "anonymous";
 	private static final String  DEFAULT_PASSWORD = "anonymous@example.com";
 	
 	private static final boolean USE_EPSV_WITH_IPV4     = true;
 	private static final boolean USE_LOCAL_PASSIVE_MODE = true;
 	
+	private static final int     BUFFER_SIZE            = 64 * 1024;
+	private static final int     MAX_IDLE_SESSION       = 8;      // max idle session per host and user
+	private static final long    VALIDATE_AFTER_IDLE    = 10_000; // in milliseconds. check idle session with NOOP before reuse
+	private static final long    CLOSE_AFTER_IDLE       = 60_000; // in milliseconds. close idle session
+	
+	
 	//
-	// returns null for FileNotFoundException
+	// Target is parsed ftp url
 	//
-	
-	// downloadRaw() use url
-	public static byte[] downloadRaw(URL url) {
-		byte[] result = null;
-		
-		String protocol = url.getProtocol();
-		if (!protocol.equals("ftp")) {
-			logger.info("Unexpected protocol");
-			logger.info("  url {}!", url);
-			throw new UnexpectedException("Unexpected protocol");
-		}
-
-		final String host        = url.getHost();
+	static final class Target {
+		final URL    url;
+		final String host;
+		final int    port;
+		final String username;
+		final String password;
 		final String directoryName;
 		final String fileName;
-		{
-			File file     = new File(url.getPath());
-			directoryName = file.getParent();
-			fileName      = file.getName();
-		}
 		
-		final String username;
-		final String password;
-		{
-			String userInfo = url.getUserInfo();
-			if (userInfo == null) {
-				username = DEFAULT_USERNAME;
-				password = DEFAULT_PASSWORD;
-			} else {
-				int pos = userInfo.indexOf(':');
-				if (pos != -1) {
-					username = userInfo.substring(0, pos);
-					password = userInfo.substring(pos + 1);
+		Target(URL url) {
+			String protocol = url.getProtocol();
+			if (!protocol.equals("ftp")) {
+				logger.info("Unexpected protocol");
+				logger.info("  url {}!", url);
+				throw new UnexpectedException("Unexpected protocol");
+			}
+			
+			this.url  = url;
+			this.host = url.getHost();
+			{
+				// path of url is percent-encoded. '+' is not space in path
+				File file     = new File(URLDecoder.decode(url.getPath().replace("+", "%2B"), StandardCharsets.UTF_8));
+				directoryName = file.getParent();
+				fileName      = file.getName();
+			}
+			{
+				String userInfo = url.getUserInfo();
+				if (userInfo == null) {
+					username = DEFAULT_USERNAME;
+					password = DEFAULT_PASSWORD;
 				} else {
-					username = userInfo;
-					password = null;
+					int pos = userInfo.indexOf(':');
+					if (pos != -1) {
+						username = userInfo.substring(0, pos);
+						password = userInfo.substring(pos + 1);
+					} else {
+						username = userInfo;
+						password = null;
+					}
 				}
 			}
-		}
-
-		final int port;
-		{
-			int myPort = url.getPort();
-			 if (myPort == -1) {
-				 port = url.getDefaultPort();
-			 } else {
-				 port = myPort;
-			 }
+			{
+				int myPort = url.getPort();
+				port = (myPort == -1) ? url.getDefaultPort() : myPort;
+			}
 		}
 		
-		FTPClient ftpClient = new FTPClient();
+		// session is pooled by this key
+		String getKey() {
+			return username + "@" + host + ":" + port;
+		}
+	}
+	
+	
+	//
+	// Session is logged in FTPClient that can be reused for many files of same host and user
+	//
+	static final class Session {
+		final String    key;
+		final FTPClient ftpClient;
 		
-		// output command and response log between server and client
-//		ftpClient.addProtocolCommandListener(
-//			new org.apache.commons.net.PrintCommandListener(
-//				new java.io.PrintWriter(new java.io.OutputStreamWriter(System.out, java.nio.charset.StandardCharsets.UTF_8)), true));
+		String currentDirectory = null;
+		long   lastUsed         = System.currentTimeMillis();
 		
-		try {
-						
-			// connect
-			ftpClient.connect(host, port);
-			checkReplyCode(ftpClient, "connect");
+		Session(Target target) throws IOException {
+			this.key       = target.getKey();
+			this.ftpClient = new FTPClient();
 			
-			// login
-			ftpClient.login(username, password);
-			checkReplyCode(ftpClient, "login");
+			// output command and response log between server and client
+//			ftpClient.addProtocolCommandListener(
+//				new org.apache.commons.net.PrintCommandListener(
+//					new java.io.PrintWriter(new java.io.OutputStreamWriter(System.out, java.nio.charset.StandardCharsets.UTF_8)), true));
 			
-			// before retrieve
-			ftpClient.setUseEPSVwithIPv4(USE_EPSV_WITH_IPV4);
-			if (USE_LOCAL_PASSIVE_MODE) ftpClient.enterLocalPassiveMode();
-
-			// type binary
-			ftpClient.type(FTP.BINARY_FILE_TYPE);
-			checkReplyCode(ftpClient, "type");
+			try {
+				// connect
+				ftpClient.connect(target.host, target.port);
+				checkReplyCode(ftpClient, "connect");
+				
+				// login
+				ftpClient.login(target.username, target.password);
+				checkReplyCode(ftpClient, "login");
+				
+				// before retrieve
+				ftpClient.setUseEPSVwithIPv4(USE_EPSV_WITH_IPV4);
+				if (USE_LOCAL_PASSIVE_MODE) ftpClient.enterLocalPassiveMode();
+				ftpClient.setBufferSize(BUFFER_SIZE);
+				
+				// type binary. type() only sends command and client still converts line end
+				ftpClient.setFileType(FTP.BINARY_FILE_TYPE);
+				checkReplyCode(ftpClient, "type");
+			} catch (IOException | RuntimeException e) {
+				close();
+				throw e;
+			}
+		}
+		
+		void changeWorkingDirectory(String directoryName) throws IOException {
+			// skip cwd if session is already in the directory
+			if (directoryName.equals(currentDirectory)) return;
 			
-			// change working directory
+			currentDirectory = null;
 			ftpClient.changeWorkingDirectory(directoryName);
 			checkReplyCode(ftpClient, "cwd");
-
-			// use size to check existence of file
-			String sizeString = ftpClient.getSize(fileName);
-			if (sizeString != null) {
-				 // file exists
-				ByteArrayOutputStream output = new ByteArrayOutputStream();
-				boolean retrieveResult = ftpClient.retrieveFile(fileName, output);
-				output.close();
-				
-				if (retrieveResult) {
-					result = output.toByteArray();
-				} else {
-					logger.error("retrieve failed");
-					logger.error("  url   {}", url);
-					logger.error("  size  {}", sizeString);
-					for(var string: ftpClient.getReplyStrings()) {
-
-						logger.error("  reply {}", string);
-					}
-					throw new UnexpectedException("retrieve failed");
-				}
-			} else {
+			currentDirectory = directoryName;
+		}
+		
+		// returns false if file does not exist
+		boolean retrieve(Target target, OutputStream output) throws IOException {
+			changeWorkingDirectory(target.directoryName);
+			
+			boolean retrieveResult = ftpClient.retrieveFile(target.fileName, output);
+			if (retrieveResult) return true;
+			
+			if (ftpClient.getReplyCode() == FTPReply.FILE_UNAVAILABLE) {
 				// file does not exit
 				logger.warn("file doesn't exist");
-				logger.warn("  url  {}", url);
+				logger.warn("  url  {}", target.url);
+				return false;
+			}
+			
+			logger.error("retrieve failed");
+			logger.error("  url   {}", target.url);
+			for(var string: ftpClient.getReplyStrings()) {
+				logger.error("  reply {}", string);
+			}
+			throw new UnexpectedException("retrieve failed");
+		}
+		
+		boolean isAlive() {
+			try {
+				return ftpClient.isConnected() && ftpClient.sendNoOp();
+			} catch (IOException e) {
+				return false;
+			}
+		}
+		
+		void close() {
+			if (ftpClient.isConnected()) {
+				try {
+					ftpClient.logout();
+				} catch (IOException e) {
+					// ignore error of logout
+				}
+				try {
+					ftpClient.disconnect();
+				} catch (IOException e) {
+					String exceptionName = e.getClass().getSimpleName();
+					logger.warn("{} {}", exceptionName, e.getMessage());
+				}
+			}
+		}
+	}
+	
+	
+	//
+	// Pool of idle session keyed by host and user
+	//
+	private static final Map<String, Deque<Session>> sessionPool = new HashMap<>();
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> closeIdleSession(0)));
+	}
+	
+	static Session acquireSession(Target target) throws IOException {
+		String key = target.getKey();
+		for(;;) {
+			Session session;
+			synchronized (sessionPool) {
+				Deque<Session> deque = sessionPool.get(key);
+				session = (deque == null) ? null : deque.pollFirst();
 			}
+			if (session == null) break;
 			
-			// logout
-			ftpClient.logout();
-			checkReplyCode(ftpClient, "logout");
+			// validate session that was idle for a while
+			if (System.currentTimeMillis() - session.lastUsed < VALIDATE_AFTER_IDLE || session.isAlive()) {
+				return session;
+			}
+			logger.info("discard stale session  {}", key);
+			session.close();
+		}
+		
+		return new Session(target);
+	}
+	static void releaseSession(Session session) {
+		session.lastUsed = System.currentTimeMillis();
+		synchronized (sessionPool) {
+			Deque<Session> deque = sessionPool.computeIfAbsent(session.key, o -> new ArrayDeque<>());
+			if (deque.size() < MAX_IDLE_SESSION) {
+				// most recently used session comes first
+				deque.addFirst(session);
+				session = null;
+			}
+		}
+		if (session != null) session.close();
+	}
+	// close session that is idle longer than idleMillis
+	public static void closeIdleSession(long idleMillis) {
+		List<Session> list = new ArrayList<>();
+		long now = System.currentTimeMillis();
+		synchronized (sessionPool) {
+			for(var deque: sessionPool.values()) {
+				deque.removeIf(o -> {
+					if (now - o.lastUsed < idleMillis) return false;
+					list.add(o);
+					return true;
+				});
+			}
+		}
+		list.forEach(Session::close);
+	}
+	public static void closeIdleSession() {
+		closeIdleSession(CLOSE_AFTER_IDLE);
+	}
+	
+	
+	//
+	// returns false if file does not exist. Session is returned to pool after successful transfer
+	//
+	private static boolean retrieve(Target target, OutputStream output) throws IOException {
+		Session session = acquireSession(target);
+		try {
+			boolean ret = session.retrieve(target, output);
+			releaseSession(session);
+			session = null;
+			return ret;
+		} finally {
+			// don't reuse session that has error
+			if (session != null) session.close();
+		}
+	}
+	
+	
+	//
+	// returns null for FileNotFoundException
+	//
+	
+	// downloadRaw() use url
+	public static byte[] downloadRaw(URL url) {
+		Target target = new Target(url);
+		try {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			return retrieve(target, output) ? output.toByteArray() : null;
 		} catch (SocketException e) {
 			String exceptionName = e.getClass().getSimpleName();
 			logger.error("{} {}", exceptionName, e);
@@ -141,19 +293,7 @@ public class FTPUtil {
 			String exceptionName = e.getClass().getSimpleName();
 			logger.error("{} {}", exceptionName, e);
 			throw new UnexpectedException(exceptionName, e);
-		} finally {
-			if (ftpClient.isConnected()) {
-			    try {
-					ftpClient.disconnect();
-				} catch (IOException e) {
-					String exceptionName = e.getClass().getSimpleName();
-					logger.error("{} {}", exceptionName, e);
-					throw new UnexpectedException(exceptionName, e);
-				}
-			}
 		}
-		
-		return result;
 	}
 	private static void checkReplyCode(FTPClient ftp, String command) {
 		int code = ftp.getReplyCode();
@@ -186,4 +326,69 @@ public class FTPUtil {
 	public static String downloadString(String urlString) {
 		return downloadString(URLUtil.toURL(urlString));
 	}
+	
+	
+	//
+	// download() streams content to file without buffering whole file in memory
+	//   content is written to temporary file ".name.pid-seq.tmp" and atomically moved to file after successful transfer. see FileUtil.writeFile
+	//   returns false if file does not exist
+	//
+	// thrown from WriteOp to abort FileUtil.writeFile without replacing file
+	private static final class NotFoundException extends IOException {
+		private static final long serialVersionUID = 1L;
+	}
+	public static boolean download(URL url, File file) {
+		Target target = new Target(url);
+		try {
+			FileUtil.writeFile(file, true, false, os -> {
+				OutputStream output = new BufferedOutputStream(os, BUFFER_SIZE);
+				if (!retrieve(target, output)) throw new NotFoundException();
+				output.flush();
+			});
+			return true;
+		} catch (NotFoundException e) {
+			return false;
+		} catch (IOException e) {
+			String exceptionName = e.getClass().getSimpleName();
+			logger.error("{} {}", exceptionName, e);
+			throw new UnexpectedException(exceptionName, e);
+		}
+	}
+	public static boolean download(String urlString, File file) {
+		return download(URLUtil.toURL(urlString), file);
+	}
+	
+	//
+	// download many files in parallel using pooled session
+	//   key of map is url string. URL is not used as key because URL.hashCode() resolves host name
+	//   returns list of url string that is not downloaded (not exist or error)
+	//
+	public static List<String> download(Map<String, File> map, int threadCount) {
+		List<String>    failedList = Collections.synchronizedList(new ArrayList<>());
+		ExecutorService executor   = Executors.newFixedThreadPool(threadCount);
+		
+		for(var entry: map.entrySet()) {
+			executor.execute(() -> {
+				String urlString = entry.getKey();
+				try {
+					if (!download(urlString, entry.getValue())) failedList.add(urlString);
+				} catch (UnexpectedException e) {
+					logger.warn("download failed  {}", urlString);
+					failedList.add(urlString);
+				}
+			});
+		}
+		
+		try {
+			executor.shutdown();
+			executor.awaitTermination(1, TimeUnit.DAYS);
+		} catch (InterruptedException e) {
+			String exceptionName = e.getClass().getSimpleName();
+			logger.error("{} {}", exceptionName, e);
+			throw new UnexpectedException(exceptionName, e);
+		}
+		
+		logger.info("download  {} / {}", map.size() - failedList.size(), map.size());
+		return failedList;
+	}
 }
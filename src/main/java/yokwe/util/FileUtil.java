@@ -1,39 +1,62 @@
 package yokwe.util;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 
 public class FileUtil {
@@ -44,7 +67,10 @@ public class FileUtil {
 	private static final Charset DEFAULT_CHARSET = StandardCharsets.UTF_8;
 
 	private static class Context {
-		private Charset charset = DEFAULT_CHARSET;
+		private Charset     charset     = DEFAULT_CHARSET;
+		private boolean     atomic      = false;
+		private boolean     sync        = false;
+		private Compression compression = null; // null means compression is chosen from extension of file
 	}
 
 	public static Read read() {
@@ -64,22 +90,19 @@ public class FileUtil {
 			context.charset = newValue;
 			return this;
 		}
+		public Read withCompression(Compression newValue) {
+			context.compression = newValue;
+			return this;
+		}
 
 		public String file(File file) {
-			char[] buffer = new char[BUFFER_SIZE];
-			try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), context.charset), buffer.length)) {
-				StringBuilder ret = new StringBuilder();
-
-				for(;;) {
-					int len = br.read(buffer);
-					if (len == -1) {
-						break;
-					}
-
-					ret.append(buffer, 0, len);
-				}
-				// remove BOM
-				return StringUtil.removeBOM(ret.toString());
+			try {
+				// read whole file with one read and decode to string directly
+				byte[] bytes  = readAllBytes(file, Compression.getInstance(context.compression, file));
+				// skip BOM of UTF-8 before decode to avoid copy of substring
+				int    offset = context.charset.equals(StandardCharsets.UTF_8) && hasUTF8BOM(bytes) ? UTF8_BOM.length : 0;
+				// remove BOM of other charset
+				return StringUtil.removeBOM(new String(bytes, offset, bytes.length - offset, context.charset));
 			} catch (IOException e) {
 				String exceptionName = e.getClass().getSimpleName();
 				logger.error("{} {}", exceptionName, e);
@@ -99,18 +122,8 @@ public class FileUtil {
 		}
 
 		public byte[] file(File file) {
-			byte[] buffer = new byte[BUFFER_SIZE];
-			try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file), buffer.length)) {
-				ByteArrayOutputStream baos = new ByteArrayOutputStream();
-				for(;;) {
-					int len = bis.read(buffer);
-					if (len == -1) {
-						break;
-					}
-
-					baos.write(buffer, 0, len);
-				}
-				return baos.toByteArray();
+			try {
+				return readAllBytes(file);
 			} catch (IOException e) {
 				String exceptionName = e.getClass().getSimpleName();
 				logger.error("{} {}", exceptionName, e);
@@ -120,6 +133,57 @@ public class FileUtil {
 		public byte[] file(String path) {
 			return file(new File(path));
 		}
+
+		//
+		// returns read only ByteBuffer of file content
+		//   file larger than MMAP_THRESHOLD is memory mapped and not copied to heap
+		//   content of mapped file is undefined if file is modified while buffer is used
+		//
+		public ByteBuffer byteBuffer(File file) {
+			try {
+				if (file.length() < MMAP_THRESHOLD) {
+					return ByteBuffer.wrap(readAllBytes(file)).asReadOnlyBuffer();
+				} else {
+					return map(file);
+				}
+			} catch (IOException e) {
+				String exceptionName = e.getClass().getSimpleName();
+				logger.error("{} {}", exceptionName, e);
+				throw new UnexpectedException(exceptionName, e);
+			}
+		}
+		public ByteBuffer byteBuffer(String path) {
+			return byteBuffer(new File(path));
+		}
+	}
+
+	private static final int    MMAP_THRESHOLD = 1024 * 1024;
+	private static final byte[] UTF8_BOM       = {(byte)0xEF, (byte)0xBB, (byte)0xBF};
+
+	private static boolean hasUTF8BOM(byte[] bytes) {
+		return UTF8_BOM.length <= bytes.length && bytes[0] == UTF8_BOM[0] && bytes[1] == UTF8_BOM[1] && bytes[2] == UTF8_BOM[2];
+	}
+	// compressed file is decompressed as stream
+	private static byte[] readAllBytes(File file, Compression compression) throws IOException {
+		if (compression == Compression.NONE) return readAllBytes(file);
+		try (InputStream is = compression.decompress(new FileInputStream(file))) {
+			return is.readAllBytes();
+		}
+	}
+	// Files.readAllBytes() allocates array of file size and read with one copy
+	private static byte[] readAllBytes(File file) throws IOException {
+		try {
+			return Files.readAllBytes(file.toPath());
+		} catch (NoSuchFileException e) {
+			// same exception as FileInputStream
+			throw new FileNotFoundException(file.getPath() + " (No such file or directory)");
+		}
+	}
+	// mapping is valid after channel is closed
+	private static ByteBuffer map(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
 	}
 
 	public static Write write() {
@@ -139,19 +203,31 @@ public class FileUtil {
 			context.charset = newValue;
 			return this;
 		}
+		// write to temporary file and rename. file never has partially written content
+		public Write withAtomic(boolean newValue) {
+			context.atomic = newValue;
+			return this;
+		}
+		// force content to storage device
+		public Write withSync(boolean newValue) {
+			context.sync = newValue;
+			return this;
+		}
+		public Write withCompression(Compression newValue) {
+			context.compression = newValue;
+			return this;
+		}
 
 		public void file(File file, String content) {
-			// Make parent directory if necessary.
-			{
-				File parent = file.getParentFile();
-				if (!parent.exists()) {
-					parent.mkdirs();
-				}
-			}
-
-			try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), context.charset), BUFFER_SIZE)) {
-				// remove BOM
-				bw.append(StringUtil.removeBOM(content));
+			Compression compression = Compression.getInstance(context.compression, file);
+			try {
+				writeFile(file, context.atomic, context.sync, os -> {
+					// close of bw writes end of compressed data. os is not closed
+					try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(compression.compress(os), context.charset), BUFFER_SIZE)) {
+						// remove BOM
+						bw.append(StringUtil.removeBOM(content));
+					}
+				});
 			} catch (IOException e) {
 				String exceptionName = e.getClass().getSimpleName();
 				logger.error("{} {}", exceptionName, e);
@@ -167,26 +243,37 @@ public class FileUtil {
 		return new RawWrite();
 	}
 	public static class RawWrite {
+		private final Context context;
+
 		private RawWrite() {
+			context = new Context();
+		}
+		// write to temporary file and rename. file never has partially written content
+		public RawWrite withAtomic(boolean newValue) {
+			context.atomic = newValue;
+			return this;
+		}
+		// force content to storage device
+		public RawWrite withSync(boolean newValue) {
+			context.sync = newValue;
+			return this;
 		}
+
 		public void file(File file, InputStream is) {
 			byte[] buffer = new byte[BUFFER_SIZE];
 
-			// Make parent directory if necessary.
-			{
-				File parent = file.getParentFile();
-				if (!parent.exists()) {
-					parent.mkdirs();
-				}
-			}
-			try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(file), buffer.length)) {
-				for(;;) {
-					int len = is.read(buffer);
-					if (len == -1) {
-						break;
+			try {
+				writeFile(file, context.atomic, context.sync, os -> {
+					BufferedOutputStream bos = new BufferedOutputStream(os, buffer.length);
+					for(;;) {
+						int len = is.read(buffer);
+						if (len == -1) {
+							break;
+						}
+						bos.write(buffer, 0, len);
 					}
-					bos.write(buffer, 0, len);
-				}
+					bos.flush();
+				});
 			} catch (IOException e) {
 				String exceptionName = e.getClass().getSimpleName();
 				logger.error("{} {}", exceptionName, e);
@@ -203,44 +290,332 @@ public class FileUtil {
 	}
 
 
+	//
+	// writeFile
+	//   atomic  write content to temporary file in same directory and move it to file.
+	//           reader sees old content or new content. crash during write leaves only temporary file.
+	//           permission of existing file is copied to temporary file. temporary file left by crash is removed by moveUnknownFile.
+	//   sync    force content of file (and directory entry for atomic) to storage device before return
+	//   op must not close output stream
+	//
+	@FunctionalInterface
+	interface WriteOp {
+		void accept(OutputStream os) throws IOException;
+	}
+	private static final AtomicLong tempFileSeq = new AtomicLong();
+	// name of temporary file is ".name.pid-seq.tmp"
+	private static final Pattern TEMP_FILE_PATTERN = Pattern.compile("^\\..+\\.([0-9]+)-[0-9]+\\.tmp$");
+	private static final Duration TEMP_FILE_MAX_AGE = Duration.ofDays(1);
+	static void writeFile(File file, boolean atomic, boolean sync, WriteOp op) throws IOException {
+		// Make parent directory if necessary.
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (!parent.exists()) {
+			parent.mkdirs();
+		}
+
+		// temporary file name starts with "." to be hidden from listing
+		File target = atomic ? new File(parent, String.format(".%s.%d-%d.tmp", file.getName(), ProcessHandle.current().pid(), tempFileSeq.incrementAndGet())) : file;
+		try {
+			try (FileOutputStream fos = new FileOutputStream(target)) {
+				op.accept(new NonClosingOutputStream(fos));
+				if (sync) fos.getFD().sync();
+			}
+			if (atomic) {
+				copyPermission(file, target);
+				try {
+					Files.move(target.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				} catch (AtomicMoveNotSupportedException e) {
+					logger.warn("atomic move is not supported  {}", parent.getPath());
+					Files.move(target.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+				if (sync) syncDirectory(parent);
+			}
+		} finally {
+			if (atomic) Files.deleteIfExists(target.toPath());
+		}
+	}
+	// keep mode of existing file. default permission of new file can be different from mode of file
+	private static void copyPermission(File source, File target) throws IOException {
+		if (!source.exists()) return;
+		try {
+			Files.setPosixFilePermissions(target.toPath(), Files.getPosixFilePermissions(source.toPath()));
+		} catch (UnsupportedOperationException e) {
+			// file system is not POSIX like Windows
+		}
+	}
+	// temporary file of writeFile is stale if process that created it is not alive, or it is older than TEMP_FILE_MAX_AGE
+	static boolean isStaleTempFile(File file) {
+		Matcher matcher = TEMP_FILE_PATTERN.matcher(file.getName());
+		if (!matcher.matches()) return false;
+		
+		long pid = Long.parseLong(matcher.group(1));
+		if (ProcessHandle.of(pid).isEmpty()) return true;
+		return TEMP_FILE_MAX_AGE.toMillis() < System.currentTimeMillis() - file.lastModified();
+	}
+	// make rename durable. not supported on some platform like Windows
+	private static void syncDirectory(File dir) {
+		try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+	private static final class NonClosingOutputStream extends FilterOutputStream {
+		NonClosingOutputStream(OutputStream out) {
+			super(out);
+		}
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+
+
 	//
 	// listFile
+	//   returns regular files in dir and its sub directories. symbolic link is followed
+	//   attributes of each entry is read once with walkFileTree
+	//   glob is matched with file name like "*.csv" or with relative path from dir if glob contains "/" like "2024/**.csv"
 	//
-	public static List<File> listFile(File dir) {
+	// listFile, parallel listFile and walk have same semantics of symbolic link
+	//   symbolic link to file and directory is followed
+	//   directory that is same as its ancestor (loop of symbolic link) is skipped with warning
+	//   unreadable directory and broken symbolic link are skipped
+	//
+	public static List<File> listFile(File dir, String glob) {
 		List<File> ret = new ArrayList<>();
+		if (!dir.isDirectory()) return ret;
 
-		if (dir.isDirectory()) {
-			for(File file: dir.listFiles()) {
-				final String name = file.getName();
-				// Skip special files -- assume we run on Unix
-				if (name.equals(".") || name.equals("..")) {
-					continue;
+		BiPredicate<Path, BasicFileAttributes> filter = getFilter(dir.toPath(), glob);
+		try {
+			Files.walkFileTree(dir.toPath(), EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					if (filter.test(file, attrs)) ret.add(file.toFile());
+					return FileVisitResult.CONTINUE;
+				}
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					// unreadable directory or loop of symbolic link
+					logger.warn("{} {}", e.getClass().getSimpleName(), file);
+					return FileVisitResult.CONTINUE;
 				}
+			});
+		} catch (IOException e) {
+			String exceptionName = e.getClass().getSimpleName();
+			logger.error("{} {}", exceptionName, e);
+			throw new UnexpectedException(exceptionName, e);
+		}
+		return ret;
+	}
+	public static List<File> listFile(File dir) {
+		return listFile(dir, null);
+	}
+	public static List<File> listFile(String dirPath) {
+		return listFile(new File(dirPath));
+	}
 
-				if (file.isDirectory()) {
-					ret.addAll(listFile(file));
+	//
+	// parallel listFile for large tree
+	//   each directory is listed by task of dedicated fork join pool
+	//
+	public static List<File> listFile(File dir, String glob, int threadCount) {
+		if (!dir.isDirectory()) return new ArrayList<>();
+
+		ForkJoinPool pool = new ForkJoinPool(threadCount);
+		try {
+			return pool.invoke(new ListFileTask(dir.toPath(), List.of(), getFilter(dir.toPath(), glob)));
+		} finally {
+			pool.shutdown();
+		}
+	}
+	private static final class ListFileTask extends RecursiveTask<List<File>> {
+		private static final long serialVersionUID = 1L;
+
+		private final Path                                   dir;
+		private final List<Object>                           ancestorList; // file key of ancestor directory
+		private final BiPredicate<Path, BasicFileAttributes> filter;
+
+		ListFileTask(Path dir, List<Object> ancestorList, BiPredicate<Path, BasicFileAttributes> filter) {
+			this.dir          = dir;
+			this.ancestorList = ancestorList;
+			this.filter       = filter;
+		}
+
+		@Override
+		protected List<File> compute() {
+			List<File>         ret   = new ArrayList<>();
+			List<ListFileTask> tasks = new ArrayList<>();
+			try {
+				Object key = getFileKey(dir, Files.readAttributes(dir, BasicFileAttributes.class));
+				if (ancestorList.contains(key)) {
+					logger.warn("loop of symbolic link {}", dir);
+					return ret;
 				}
-				if (file.isFile()) {
-					ret.add(file);
+				List<Object> childAncestorList = new ArrayList<>(ancestorList);
+				childAncestorList.add(key);
+
+				try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+					for(var path: ds) {
+						try {
+							// follow symbolic link
+							BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+							if (attrs.isDirectory()) {
+								ListFileTask task = new ListFileTask(path, childAncestorList, filter);
+								task.fork();
+								tasks.add(task);
+								continue;
+							}
+							if (filter.test(path, attrs)) ret.add(path.toFile());
+						} catch (IOException e) {
+							// broken symbolic link or file removed during listing
+							logger.warn("{} {}", e.getClass().getSimpleName(), path);
+						}
+					}
 				}
+			} catch (IOException e) {
+				logger.warn("{} {}", e.getClass().getSimpleName(), dir);
 			}
+			for(var task: tasks) ret.addAll(task.join());
+			return ret;
 		}
+	}
+	// identity of directory to detect loop of symbolic link. same as Files.walkFileTree
+	private static Object getFileKey(Path dir, BasicFileAttributes attrs) throws IOException {
+		Object ret = attrs.fileKey();
+		return ret != null ? ret : dir.toRealPath();
+	}
 
-		return ret;
+	//
+	// lazy stream of regular files. returned stream must be closed
+	//   directory is opened when stream reaches it
+	//
+	public static Stream<Path> walk(Path dir, String glob) {
+		WalkIterator iterator = new WalkIterator(dir, getFilter(dir, glob));
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(iterator::close);
 	}
-	public static List<File> listFile(String dirPath) {
-		return listFile(new File(dirPath));
+	private static final class WalkIterator implements Iterator<Path> {
+		private static final class Frame {
+			final Path                  dir;
+			final Object                key;
+			final DirectoryStream<Path> ds;
+			final Iterator<Path>        iterator;
+
+			Frame(Path dir, Object key, DirectoryStream<Path> ds) {
+				this.dir      = dir;
+				this.key      = key;
+				this.ds       = ds;
+				this.iterator = ds.iterator();
+			}
+		}
+
+		private final BiPredicate<Path, BasicFileAttributes> filter;
+		private final Deque<Frame>                           stack = new ArrayDeque<>();
+		private Path                                         next  = null;
+
+		WalkIterator(Path dir, BiPredicate<Path, BasicFileAttributes> filter) {
+			this.filter = filter;
+			try {
+				BasicFileAttributes attrs = Files.readAttributes(dir, BasicFileAttributes.class);
+				if (attrs.isDirectory()) push(dir, attrs);
+			} catch (IOException e) {
+				logger.warn("{} {}", e.getClass().getSimpleName(), dir);
+			}
+		}
+		private void push(Path dir, BasicFileAttributes attrs) {
+			try {
+				Object key = getFileKey(dir, attrs);
+				for(var frame: stack) {
+					if (frame.key.equals(key)) {
+						logger.warn("loop of symbolic link {}", dir);
+						return;
+					}
+				}
+				stack.push(new Frame(dir, key, Files.newDirectoryStream(dir)));
+			} catch (IOException e) {
+				logger.warn("{} {}", e.getClass().getSimpleName(), dir);
+			}
+		}
+		private void pop() {
+			try {
+				stack.pop().ds.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			while(next == null && !stack.isEmpty()) {
+				Frame frame = stack.peek();
+				Path  path;
+				try {
+					if (!frame.iterator.hasNext()) {
+						pop();
+						continue;
+					}
+					path = frame.iterator.next();
+				} catch (DirectoryIteratorException e) {
+					logger.warn("{} {}", e.getCause().getClass().getSimpleName(), frame.dir);
+					pop();
+					continue;
+				}
+
+				try {
+					// follow symbolic link
+					BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+					if (attrs.isDirectory()) {
+						push(path, attrs);
+					} else if (filter.test(path, attrs)) {
+						next = path;
+					}
+				} catch (IOException e) {
+					// broken symbolic link or file removed during listing
+					logger.warn("{} {}", e.getClass().getSimpleName(), path);
+				}
+			}
+			return next != null;
+		}
+		@Override
+		public Path next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			Path ret = next;
+			next = null;
+			return ret;
+		}
+		void close() {
+			while(!stack.isEmpty()) pop();
+		}
+	}
+	public static Stream<Path> walk(Path dir) {
+		return walk(dir, null);
+	}
+
+	private static BiPredicate<Path, BasicFileAttributes> getFilter(Path dir, String glob) {
+		if (glob == null) return (path, attrs) -> attrs.isRegularFile();
+
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+		if (glob.contains("/")) {
+			return (path, attrs) -> attrs.isRegularFile() && matcher.matches(dir.relativize(path));
+		} else {
+			return (path, attrs) -> attrs.isRegularFile() && matcher.matches(path.getFileName());
+		}
 	}
 
 
 	//
 	// md5FileMap md5Set
 	//
+	// files are hashed in parallel
 	public static Map<File, String> md5FileMap(List<File> list) {
-		return list.stream().collect(Collectors.toMap(Function.identity(), o -> HashCode.getHashHexString(o)));
+		return HashCode.getHashHexStringMap(list);
 	}
 	public static Set<String> md5Set(List<File> list) {
-		return list.stream().map(o -> HashCode.getHashHexString(o)).collect(Collectors.toSet());
+		return new HashSet<>(md5FileMap(list).values());
 	}
 
 
@@ -320,11 +695,21 @@ public class FileUtil {
 		dir.mkdir();
 		delistDir.mkdir();
 
-		for(var file: dir.listFiles()) {
+		// File.list() doesn't stat each file. check file type of unknown file only
+		for(var name: dir.list()) {
+			if (validFilenameSet.contains(name)) {
+				continue;
+			}
+			var file = new File(dir, name);
 			if (file.isDirectory()) {
 				continue;
 			}
-			if (validFilenameSet.contains(file.getName())) {
+			// temporary file of writeFile is not unknown file. remove it if it is left by crashed process
+			if (TEMP_FILE_PATTERN.matcher(name).matches()) {
+				if (isStaleTempFile(file)) {
+					logger.info("delete stale temporary file {}", file.getPath());
+					if (!dryRun) file.delete();
+				}
 				continue;
 			}
 
@@ -0,0 +1,162 @@
+package yokwe.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//
+// Persistent cache of hash of file keyed by path, size and mtime
+//   Hash of unchanged file is taken from cache without reading file.
+//   Cache is loaded from and saved to CSV file.
+//   Each entry has algorithm of hash. Entry of other algorithm is ignored.
+//
+public final class HashCache {
+	private static final org.slf4j.Logger logger = yokwe.util.LoggerUtil.getLogger();
+	
+	// file modified within this period is not cached. mtime of file system can be too coarse to detect change
+	private static final long RACY_PERIOD = 2_000; // in milliseconds
+	
+	public static class Entry implements Comparable<Entry> {
+		public String path;  // absolute path
+		public long   size;
+		public long   mtime; // epoch milli
+		public String hash;  // hex string
+		public String algorithm;
+		
+		public Entry() {
+			this("", 0, 0, "", "");
+		}
+		public Entry(String path, long size, long mtime, String hash, String algorithm) {
+			this.path      = path;
+			this.size      = size;
+			this.mtime     = mtime;
+			this.hash      = hash;
+			this.algorithm = algorithm;
+		}
+		
+		@Override
+		public int compareTo(Entry that) {
+			return this.path.compareTo(that.path);
+		}
+		@Override
+		public String toString() {
+			return String.format("{%s %d %d %s %s}", path, size, mtime, hash, algorithm);
+		}
+	}
+	
+	private final File                             cacheFile;
+	private final String                           algorithm;
+	private final ConcurrentHashMap<String, Entry> map       = new ConcurrentHashMap<>();
+	private final AtomicInteger                    hitCount  = new AtomicInteger();
+	private final AtomicInteger                    missCount = new AtomicInteger();
+	private volatile boolean                       modified  = false;
+	
+	public HashCache(File cacheFile, String algorithm) {
+		this.cacheFile = cacheFile;
+		this.algorithm = algorithm;
+		
+		if (cacheFile.canRead()) {
+			List<Entry> list;
+			try {
+				list = CSVUtil.read(Entry.class).file(cacheFile);
+			} catch (UnexpectedException e) {
+				// cache of old format without algorithm. start with empty cache
+				logger.warn("discard cache  {}", cacheFile.getPath());
+				list = null;
+			}
+			if (list != null) {
+				for(var e: list) {
+					if (e.algorithm.equals(algorithm)) map.put(e.path, e);
+				}
+			}
+		}
+	}
+	public HashCache(File cacheFile) {
+		this(cacheFile, HashCode.DEFAULT_ALGORITHM);
+	}
+	
+	// returns null if file is not cached or file is changed
+	private String getCached(File file) {
+		Entry entry = map.get(file.getAbsolutePath());
+		if (entry != null && entry.algorithm.equals(algorithm) && entry.size == file.length() && entry.mtime == file.lastModified()) {
+			hitCount.incrementAndGet();
+			return entry.hash;
+		}
+		missCount.incrementAndGet();
+		return null;
+	}
+	private void put(File file, long size, long mtime, String hash) {
+		if (System.currentTimeMillis() - mtime < RACY_PERIOD) return;
+		
+		map.put(file.getAbsolutePath(), new Entry(file.getAbsolutePath(), size, mtime, hash, algorithm));
+		modified = true;
+	}
+	
+	public String get(File file) {
+		String ret = getCached(file);
+		if (ret != null) return ret;
+		
+		long size  = file.length();
+		long mtime = file.lastModified();
+		ret = HashCode.getHashHexString(file, algorithm);
+		put(file, size, mtime, ret);
+		return ret;
+	}
+	
+	// file that is not cached is hashed in parallel
+	public Map<File, String> get(Collection<File> files, int threadCount) {
+		Map<File, String> ret     = new HashMap<>();
+		List<File>        missing = new ArrayList<>();
+		for(var file: files) {
+			String hash = getCached(file);
+			if (hash != null) {
+				ret.put(file, hash);
+			} else {
+				missing.add(file);
+			}
+		}
+		
+		if (!missing.isEmpty()) {
+			// take size and mtime before read. so change during read is detected in next run
+			Map<File, long[]> statMap = new HashMap<>();
+			for(var file: missing) statMap.put(file, new long[] {file.length(), file.lastModified()});
+			
+			var hashMap = HashCode.getHashHexStringMap(missing, algorithm, threadCount);
+			for(var e: hashMap.entrySet()) {
+				long[] stat = statMap.get(e.getKey());
+				put(e.getKey(), stat[0], stat[1], e.getValue());
+				ret.put(e.getKey(), e.getValue());
+			}
+		}
+		return ret;
+	}
+	public Map<File, String> get(Collection<File> files) {
+		return get(files, Runtime.getRuntime().availableProcessors());
+	}
+	
+	// remove entry of file that doesn't exist
+	public void prune() {
+		if (map.values().removeIf(o -> !new File(o.path).exists())) modified = true;
+	}
+	public void save() {
+		if (!modified) return;
+		
+		List<Entry> list = new ArrayList<>(map.values());
+		list.sort(null);
+		CSVUtil.write(Entry.class).withAtomic(true).file(cacheFile, list);
+		modified = false;
+		logger.info("save  {}  entry {}  hit {}  miss {}", cacheFile.getPath(), list.size(), hitCount.get(), missCount.get());
+	}
+	
+	public int getHitCount() {
+		return hitCount.get();
+	}
+	public int getMissCount() {
+		return missCount.get();
+	}
+}
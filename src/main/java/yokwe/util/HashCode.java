@@ -4,14 +4,96 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32C;
 
 public class HashCode {
 	private static final org.slf4j.Logger logger = yokwe.util.LoggerUtil.getLogger();
-
+	
 	public static final String DEFAULT_ALGORITHM = "md5";
 	
+	// sha-256 uses SHA instruction of cpu if available
+	public static final String ALGORITHM_SHA256 = "sha-256";
+	// checksum that is not MessageDigest. faster than md5 but not cryptographic
+	public static final String ALGORITHM_CRC32C = "crc32c";
+	
+	private static final int  BUFFER_SIZE    = 1024 * 64;
+	// file larger than this is read with memory mapped buffer
+	private static final long MMAP_THRESHOLD = 1024 * 1024;
+	private static final long MMAP_CHUNK     = 64 * 1024 * 1024;
+	
+	//
+	// Hasher is MessageDigest or Checksum
+	//
+	private interface Hasher {
+		void   update(byte[] data, int offset, int length);
+		void   update(ByteBuffer data);
+		byte[] digest();
+		void   reset();
+	}
+	private static final class DigestHasher implements Hasher {
+		private final MessageDigest md;
+		DigestHasher(MessageDigest md) {
+			this.md = md;
+		}
+		@Override
+		public void update(byte[] data, int offset, int length) {
+			md.update(data, offset, length);
+		}
+		@Override
+		public void update(ByteBuffer data) {
+			md.update(data);
+		}
+		@Override
+		public byte[] digest() {
+			// digest() also resets md for next use
+			return md.digest();
+		}
+		@Override
+		public void reset() {
+			md.reset();
+		}
+	}
+	private static final class CRC32CHasher implements Hasher {
+		private final CRC32C crc = new CRC32C();
+		@Override
+		public void update(byte[] data, int offset, int length) {
+			crc.update(data, offset, length);
+		}
+		@Override
+		public void update(ByteBuffer data) {
+			crc.update(data);
+		}
+		@Override
+		public byte[] digest() {
+			long value = crc.getValue();
+			crc.reset();
+			return new byte[] {(byte)(value >>> 24), (byte)(value >>> 16), (byte)(value >>> 8), (byte)value};
+		}
+		@Override
+		public void reset() {
+			crc.reset();
+		}
+	}
+	
+	// MessageDigest.getInstance() is slow. reuse hasher of each thread
+	private static final ThreadLocal<Map<String, Hasher>> hasherMap = ThreadLocal.withInitial(HashMap::new);
+	private static Hasher getHasher(String algorithm) {
+		Hasher ret = hasherMap.get().computeIfAbsent(algorithm.toLowerCase(), o -> o.equals(ALGORITHM_CRC32C) ? new CRC32CHasher() : new DigestHasher(getMessageDigest(o)));
+		// previous use can be interrupted by exception
+		ret.reset();
+		return ret;
+	}
 	private static MessageDigest getMessageDigest(String algorithm) {
 		try {
 			MessageDigest md = MessageDigest.getInstance(algorithm);
@@ -24,16 +106,31 @@ public class HashCode {
 	}
 	
 	public static byte[] getHashCode(byte[] data, String algorithm) {
-		MessageDigest md = getMessageDigest(algorithm);
-		return md.digest(data);
+		Hasher hasher = getHasher(algorithm);
+		hasher.update(data, 0, data.length);
+		return hasher.digest();
 	}
 	public static byte[] getHashCode(byte[] data) {
 		return getHashCode(data, DEFAULT_ALGORITHM);
 	}
 	
 	public static byte[] getHashCode(File file, String algorithm) {
-		try (FileInputStream fis = new FileInputStream(file)) {
-			return getHashCode(fis, algorithm);
+		try {
+			if (file.length() < MMAP_THRESHOLD) {
+				try (FileInputStream fis = new FileInputStream(file)) {
+					return getHashCode(fis, algorithm);
+				}
+			}
+			
+			// large file is hashed with memory mapped buffer without copy to heap
+			Hasher hasher = getHasher(algorithm);
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				long size = channel.size();
+				for(long position = 0; position < size; position += MMAP_CHUNK) {
+					hasher.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MMAP_CHUNK, size - position)));
+				}
+			}
+			return hasher.digest();
 		} catch (IOException e) {
 			String exceptionName = e.getClass().getSimpleName();
 			logger.error("{} {}", exceptionName, e);
@@ -46,16 +143,16 @@ public class HashCode {
 	
 	public static byte[] getHashCode(InputStream is, String algorithm) {
 		try {
-			MessageDigest md = getMessageDigest(algorithm);
+			Hasher hasher = getHasher(algorithm);
 			
-			byte buffer[] = new byte[1024 * 64];
+			byte buffer[] = new byte[BUFFER_SIZE];
 			for(;;) {
 				int len = is.read(buffer);
 				if (len == -1) break;
-				md.update(buffer, 0, len);
+				hasher.update(buffer, 0, len);
 			}
 			
-			return md.digest();
+			return hasher.digest();
 		} catch (IOException e) {
 			String exceptionName = e.getClass().getSimpleName();
 			logger.error("{} {}", exceptionName, e);
@@ -63,7 +160,33 @@ public class HashCode {
 		}
 	}
 	
+	public static String getHashHexString(File file, String algorithm) {
+		return StringUtil.toHexString(getHashCode(file, algorithm));
+	}
 	public static String getHashHexString(File file) {
-		return StringUtil.toHexString(getHashCode(file, DEFAULT_ALGORITHM));
+		return getHashHexString(file, DEFAULT_ALGORITHM);
+	}
+	
+	//
+	// hash many files in parallel
+	//   files are hashed in dedicated fork join pool. so blocking read doesn't occupy common pool
+	//
+	public static Map<File, String> getHashHexStringMap(Collection<File> files, String algorithm, int threadCount) {
+		ForkJoinPool pool = new ForkJoinPool(threadCount);
+		try {
+			return pool.submit(() -> files.parallelStream().collect(Collectors.toConcurrentMap(o -> o, o -> getHashHexString(o, algorithm)))).get();
+		} catch (InterruptedException | ExecutionException e) {
+			String exceptionName = e.getClass().getSimpleName();
+			logger.error("{} {}", exceptionName, e);
+			throw new UnexpectedException(exceptionName, e);
+		} finally {
+			pool.shutdown();
+		}
+	}
+	public static Map<File, String> getHashHexStringMap(Collection<File> files, String algorithm) {
+		return getHashHexStringMap(files, algorithm, Runtime.getRuntime().availableProcessors());
+	}
+	public static Map<File, String> getHashHexStringMap(Collection<File> files) {
+		return getHashHexStringMap(files, DEFAULT_ALGORITHM);
 	}
 }
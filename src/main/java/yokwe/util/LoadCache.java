@@ -0,0 +1,169 @@
+package yokwe.util;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.Supplier;
+
+//
+// In-process cache of list loaded from file. Used by loadCached() of Storage.LoadSaveFileList and LoadSaveDirectoryList
+//   Entry is valid while mtime and size of file is not changed.
+//   Total size of entry is limited by estimated byte size. Least recently used entry is evicted first.
+//   Cached list is unmodifiable and shared by all callers.
+//
+public final class LoadCache {
+	private static final org.slf4j.Logger logger = yokwe.util.LoggerUtil.getLogger();
+	
+	private static final long DEFAULT_MAX_SIZE           = 256L * 1024 * 1024;
+	// estimated memory size of parsed object per byte of file
+	private static final int  ESTIMATE_FACTOR            = 4;
+	// compressed file like .gz and .zst expands 10 to 50 times. use typical ratio of csv
+	private static final int  COMPRESSED_ESTIMATE_FACTOR = ESTIMATE_FACTOR * 20;
+	// file modified within this period is not cached. mtime of file system can be too coarse to detect change
+	private static final long RACY_PERIOD                = 2_000; // in milliseconds
+	
+	private static final class Entry {
+		final long    lastModified;
+		final long    length;
+		final long    estimatedSize;
+		final List<?> list;
+		
+		Entry(long lastModified, long length, Compression compression, List<?> list) {
+			this.lastModified  = lastModified;
+			this.length        = length;
+			this.estimatedSize = length * (compression == Compression.NONE ? ESTIMATE_FACTOR : COMPRESSED_ESTIMATE_FACTOR);
+			this.list          = list;
+		}
+	}
+	
+	public static final class Stats {
+		public final long hitCount;
+		public final long missCount;
+		public final long evictCount;
+		public final int  entryCount;
+		public final long size;    // estimated byte size of entry
+		public final long maxSize;
+		
+		private Stats(long hitCount, long missCount, long evictCount, int entryCount, long size, long maxSize) {
+			this.hitCount   = hitCount;
+			this.missCount  = missCount;
+			this.evictCount = evictCount;
+			this.entryCount = entryCount;
+			this.size       = size;
+			this.maxSize    = maxSize;
+		}
+		
+		public double hitRatio() {
+			long count = hitCount + missCount;
+			return count == 0 ? 0 : (double)hitCount / count;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("{hit %d  miss %d  evict %d  entry %d  size %d / %d}", hitCount, missCount, evictCount, entryCount, size, maxSize);
+		}
+	}
+	
+	// access order for LRU
+	private static final LinkedHashMap<String, Entry> map = new LinkedHashMap<>(16, 0.75f, true);
+	
+	private static long maxSize    = DEFAULT_MAX_SIZE;
+	private static long size       = 0;
+	private static long hitCount   = 0;
+	private static long missCount  = 0;
+	private static long evictCount = 0;
+	
+	private static String getKey(Class<?> clazz, File file) {
+		return clazz.getName() + "\t" + file.getAbsolutePath();
+	}
+	
+	//
+	// returns cached list if file is not changed. Otherwise load list with loader and cache it
+	//   returns null if loader returns null
+	//
+	public static <E> List<E> get(Class<E> clazz, File file, Supplier<List<E>> loader) {
+		String key          = getKey(clazz, file);
+		long   lastModified = file.lastModified();
+		long   length       = file.length();
+		
+		synchronized (map) {
+			Entry entry = map.get(key);
+			if (entry != null) {
+				if (entry.lastModified == lastModified && entry.length == length) {
+					hitCount++;
+					@SuppressWarnings("unchecked")
+					List<E> ret = (List<E>)entry.list;
+					return ret;
+				}
+				remove(key);
+			}
+			missCount++;
+		}
+		
+		// load outside of lock. concurrent load of same file is allowed
+		List<E> list = loader.get();
+		if (list == null) return null;
+		List<E> ret = Collections.unmodifiableList(list);
+		
+		// don't cache file that is modified just now or during load
+		if (System.currentTimeMillis() - lastModified < RACY_PERIOD) return ret;
+		if (file.lastModified() != lastModified || file.length() != length) return ret;
+		
+		Entry entry = new Entry(lastModified, length, Compression.getInstance(file), ret);
+		// too large to cache
+		if (maxSize < entry.estimatedSize) return ret;
+		
+		synchronized (map) {
+			remove(key);
+			map.put(key, entry);
+			size += entry.estimatedSize;
+			evict();
+		}
+		return ret;
+	}
+	
+	// called when file is written
+	public static void invalidate(Class<?> clazz, File file) {
+		synchronized (map) {
+			remove(getKey(clazz, file));
+		}
+	}
+	public static void clear() {
+		synchronized (map) {
+			map.clear();
+			size = 0;
+		}
+	}
+	
+	public static void setMaxSize(long newValue) {
+		synchronized (map) {
+			maxSize = newValue;
+			evict();
+		}
+	}
+	public static Stats getStats() {
+		synchronized (map) {
+			return new Stats(hitCount, missCount, evictCount, map.size(), size, maxSize);
+		}
+	}
+	public static void logStats() {
+		logger.info("stats  {}", getStats());
+	}
+	
+	// caller must hold lock of map
+	private static void remove(String key) {
+		Entry entry = map.remove(key);
+		if (entry != null) size -= entry.estimatedSize;
+	}
+	private static void evict() {
+		Iterator<Entry> i = map.values().iterator();
+		while(maxSize < size && i.hasNext()) {
+			Entry entry = i.next();
+			i.remove();
+			size -= entry.estimatedSize;
+			evictCount++;
+		}
+	}
+}
@@ -0,0 +1,386 @@
+package yokwe.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+//
+// Archive of many small entries in one file
+//   Entry is appended to end of file. Newer entry of same key replaces older entry.
+//   Offset of each entry is kept in memory and built by scanning header of records when file is opened.
+//   Entry is read with one positional read.
+//   Space of replaced and deleted entry is reclaimed by compaction that runs in background.
+//   File is locked exclusively while it is opened. Only one process can use same file at a time.
+//
+// Record format
+//   int    MAGIC
+//   int    key length
+//   int    data length. -1 means entry is deleted
+//   byte[] key (UTF-8)
+//   byte[] data
+//
+public final class PackedFile {
+	private static final org.slf4j.Logger logger = yokwe.util.LoggerUtil.getLogger();
+	
+	private static final int  MAGIC         = 0x504B4631; // "PKF1"
+	private static final int  HEADER_SIZE   = 12;
+	private static final int  DELETED       = -1;
+	// compact when garbage is larger than both of this and live data
+	private static final long COMPACT_MIN   = 1024 * 1024;
+	
+	private static final AtomicLong tempFileSeq = new AtomicLong();
+	
+	private static final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "PACKED-FILE-COMPACT");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	private static final class Location {
+		final long position; // position of record
+		final int  size;     // size of record
+		final int  dataOffset;
+		final int  dataLength;
+		
+		Location(long position, int keyLength, int dataLength) {
+			this.position   = position;
+			this.size       = HEADER_SIZE + keyLength + Math.max(0, dataLength);
+			this.dataOffset = HEADER_SIZE + keyLength;
+			this.dataLength = dataLength;
+		}
+	}
+	
+	//
+	// one instance for each file. So LoadSave of same file shares index and lock
+	//
+	private static final Map<String, PackedFile> instanceMap = new HashMap<>();
+	public static PackedFile getInstance(File file) {
+		String key = file.getAbsolutePath();
+		synchronized (instanceMap) {
+			PackedFile ret = instanceMap.get(key);
+			if (ret == null) {
+				ret = new PackedFile(file.getAbsoluteFile());
+				instanceMap.put(key, ret);
+			}
+			return ret;
+		}
+	}
+	
+	private final File                   file;
+	private final ReentrantReadWriteLock lock        = new ReentrantReadWriteLock();
+	private final ReentrantLock          compactLock = new ReentrantLock(); // serialize compaction
+	private final AtomicBoolean          compacting  = new AtomicBoolean(false);
+	
+	private FileChannel           channel;
+	private Map<String, Location> map;
+	private long                  size;        // end of file
+	private long                  garbageSize; // size of record that is replaced or deleted
+	
+	private PackedFile(File file) {
+		this.file = file;
+		lock.writeLock().lock();
+		try {
+			File parent = file.getParentFile();
+			if (!parent.exists()) parent.mkdirs();
+			
+			open(lockChannel(FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)));
+		} catch (IOException e) {
+			String exceptionName = e.getClass().getSimpleName();
+			logger.error("{} {}", exceptionName, e);
+			throw new UnexpectedException(exceptionName, e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	// returns channel that has exclusive lock of file. lock is released when channel is closed
+	private FileChannel lockChannel(FileChannel newChannel) throws IOException {
+		FileLock fileLock;
+		try {
+			fileLock = newChannel.tryLock();
+		} catch (IOException | RuntimeException e) {
+			newChannel.close();
+			throw e;
+		}
+		if (fileLock == null) {
+			newChannel.close();
+			logger.error("file is used by other process");
+			logger.error("  file  {}", file.getPath());
+			throw new UnexpectedException("file is used by other process");
+		}
+		return newChannel;
+	}
+	// use newChannel and build index. caller must hold write lock
+	private void open(FileChannel newChannel) throws IOException {
+		channel     = newChannel;
+		map         = new HashMap<>();
+		size        = channel.size();
+		garbageSize = 0;
+		
+		// build index from header of records
+		ByteBuffer header   = ByteBuffer.allocate(HEADER_SIZE);
+		long       position = 0;
+		while(position < size) {
+			header.clear();
+			if (!readFully(header, position) || header.getInt(0) != MAGIC) break;
+			int keyLength  = header.getInt(4);
+			int dataLength = header.getInt(8);
+			Location location = new Location(position, keyLength, dataLength);
+			if (keyLength < 0 || size < position + location.size) break;
+			
+			ByteBuffer keyBuffer = ByteBuffer.allocate(keyLength);
+			if (!readFully(keyBuffer, position + HEADER_SIZE)) break;
+			String key = new String(keyBuffer.array(), StandardCharsets.UTF_8);
+			
+			Location old = dataLength == DELETED ? map.remove(key) : map.put(key, location);
+			if (old != null)              garbageSize += old.size;
+			if (dataLength == DELETED)    garbageSize += location.size;
+			position += location.size;
+		}
+		if (position != size) {
+			// record at end of file is partially written. discard it
+			logger.warn("truncate broken record  {}  {} -> {}", file.getPath(), size, position);
+			channel.truncate(position);
+			size = position;
+		}
+	}
+	private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			int n = channel.read(buffer, position + buffer.position());
+			if (n < 0) return false;
+		}
+		return true;
+	}
+	
+	public File getFile() {
+		return file;
+	}
+	
+	//
+	// returns null if entry doesn't exist
+	//
+	public byte[] read(String key) {
+		lock.readLock().lock();
+		try {
+			Location location = map.get(key);
+			if (location == null) return null;
+			
+			ByteBuffer buffer = ByteBuffer.allocate(location.dataLength);
+			if (!readFully(buffer, location.position + location.dataOffset)) {
+				logger.error("Unexpected EOF");
+				logger.error("  file  {}", file.getPath());
+				logger.error("  key   {}", key);
+				throw new UnexpectedException("Unexpected EOF");
+			}
+			return buffer.array();
+		} catch (IOException e) {
+			String exceptionName = e.getClass().getSimpleName();
+			logger.error("{} {}", exceptionName, e);
+			throw new UnexpectedException(exceptionName, e);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	public boolean contains(String key) {
+		lock.readLock().lock();
+		try {
+			return map.containsKey(key);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	// returns sorted key
+	public List<String> keyList() {
+		lock.readLock().lock();
+		try {
+			List<String> ret = new ArrayList<>(map.keySet());
+			ret.sort(null);
+			return ret;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	public void write(String key, byte[] data) {
+		append(key, data);
+	}
+	// returns false if entry doesn't exist
+	public boolean delete(String key) {
+		if (!contains(key)) return false;
+		append(key, null);
+		return true;
+	}
+	private void append(String key, byte[] data) {
+		ByteBuffer buffer = toRecord(key, data);
+		int        length = data == null ? DELETED : data.length;
+		
+		lock.writeLock().lock();
+		try {
+			long     position = size;
+			Location location = new Location(position, buffer.getInt(4), length);
+			size = write(channel, position, buffer);
+			
+			Location old = data == null ? map.remove(key) : map.put(key, location);
+			if (old != null)    garbageSize += old.size;
+			if (data == null)   garbageSize += location.size;
+		} catch (IOException e) {
+			String exceptionName = e.getClass().getSimpleName();
+			logger.error("{} {}", exceptionName, e);
+			throw new UnexpectedException(exceptionName, e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		
+		if (needsCompaction() && compacting.compareAndSet(false, true)) {
+			compactor.execute(() -> {
+				try {
+					compact();
+				} catch (UnexpectedException e) {
+					// error is logged in compact()
+				} finally {
+					compacting.set(false);
+				}
+			});
+		}
+	}
+	private boolean needsCompaction() {
+		lock.readLock().lock();
+		try {
+			return COMPACT_MIN < garbageSize && size - garbageSize < garbageSize;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	// force written entry to storage device
+	public void sync() {
+		lock.readLock().lock();
+		try {
+			channel.force(false);
+		} catch (IOException e) {
+			String exceptionName = e.getClass().getSimpleName();
+			logger.error("{} {}", exceptionName, e);
+			throw new UnexpectedException(exceptionName, e);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	//
+	// compaction
+	//   Live entries are copied to temporary file without write lock. So reader and writer are not blocked.
+	//   Then entries that is written during copy are copied with write lock and temporary file replaces file.
+	//   Temporary file is locked before move. So lock of file is held during compaction.
+	//   If move fails, file and channel is unchanged.
+	//
+	public void compact() {
+		compactLock.lock();
+		// name of temporary file is same as FileUtil.writeFile
+		File        tempFile = new File(file.getParentFile(), String.format(".%s.%d-%d.tmp", file.getName(), ProcessHandle.current().pid(), tempFileSeq.incrementAndGet()));
+		FileChannel out      = null;
+		boolean     moved    = false;
+		try {
+			Map<String, Location> snapshot;
+			lock.readLock().lock();
+			try {
+				snapshot = new HashMap<>(map);
+			} finally {
+				lock.readLock().unlock();
+			}
+			
+			out = lockChannel(FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE));
+			long position = 0;
+			for(var e: snapshot.entrySet()) {
+				position = copy(e.getKey(), e.getValue(), out, position);
+			}
+			
+			lock.writeLock().lock();
+			try {
+				// entry written during copy
+				for(var e: map.entrySet()) {
+					if (snapshot.get(e.getKey()) == e.getValue()) continue;
+					position = copy(e.getKey(), e.getValue(), out, position);
+				}
+				// entry deleted during copy
+				for(var key: snapshot.keySet()) {
+					if (map.containsKey(key)) continue;
+					position = write(out, position, toRecord(key, null));
+				}
+				out.force(false);
+				
+				try {
+					Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+				moved = true;
+				logger.info("compact  {}  {} -> {}", file.getPath(), size, position);
+				// close old file after move. then build index from new file
+				FileChannel newChannel = out;
+				out = null;
+				channel.close();
+				open(newChannel);
+			} finally {
+				lock.writeLock().unlock();
+			}
+		} catch (IOException e) {
+			String exceptionName = e.getClass().getSimpleName();
+			logger.error("{} {}", exceptionName, e);
+			throw new UnexpectedException(exceptionName, e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+			if (!moved) tempFile.delete();
+			compactLock.unlock();
+		}
+	}
+	// copy record at location to out. returns new end position of out
+	private long copy(String key, Location location, FileChannel out, long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(location.size);
+		if (!readFully(buffer, location.position)) {
+			logger.error("Unexpected EOF");
+			logger.error("  file  {}", file.getPath());
+			logger.error("  key   {}", key);
+			throw new UnexpectedException("Unexpected EOF");
+		}
+		buffer.flip();
+		return write(out, position, buffer);
+	}
+	private static long write(FileChannel out, long position, ByteBuffer buffer) throws IOException {
+		long ret = position + buffer.remaining();
+		while(buffer.hasRemaining()) {
+			out.write(buffer, position + buffer.position());
+		}
+		return ret;
+	}
+	private static ByteBuffer toRecord(String key, byte[] data) {
+		byte[]     keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		int        length   = data == null ? DELETED : data.length;
+		ByteBuffer ret      = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length + Math.max(0, length));
+		ret.putInt(MAGIC).putInt(keyBytes.length).putInt(length).put(keyBytes);
+		if (data != null) ret.put(data);
+		ret.flip();
+		return ret;
+	}
+}
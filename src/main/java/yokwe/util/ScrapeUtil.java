@@ -447,7 +447,7 @@ public class ScrapeUtil {
 		return arg;
 	}
 	
-	public static <E> E get(Class<E> clazz, Pattern pat, String string) {
+	public static <E> E get(Class<E> clazz, Pattern pat, CharSequence string) {
 		try {
 			ClassInfo classInfo = getClassInfo(clazz);
 			Object[] args = new Object[classInfo.fieldInfos.length];
@@ -473,7 +473,7 @@ public class ScrapeUtil {
 		}
 	}
 	
-	public static <E> List<E> getList(Class<E> clazz, Pattern pat, String string) {
+	public static <E> List<E> getList(Class<E> clazz, Pattern pat, CharSequence string) {
 		try {
 			List<E> ret = new ArrayList<>();
 			
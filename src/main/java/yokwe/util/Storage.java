@@ -1,14 +1,32 @@
 package yokwe.util;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -108,6 +126,16 @@ public class Storage {
 	public interface LoadSave {
 	}
 	
+	//
+	// watch change of files of LoadSave. returned watcher is started. close watcher to stop
+	//
+	public static StorageWatcher watch(LoadSave loadSave, Consumer<StorageWatcher.Event> listener, Duration debounce) {
+		return new StorageWatcher(debounce).add(loadSave, listener).start();
+	}
+	public static StorageWatcher watch(LoadSave loadSave, Consumer<StorageWatcher.Event> listener) {
+		return watch(loadSave, listener, StorageWatcher.DEFAULT_DEBOUNCE);
+	}
+	
 	//
 	// LoadSaveFileXXX
 	//
@@ -165,7 +193,7 @@ public class Storage {
 		}
 		@Override
 		public void write(String string) {
-			FileUtil.write().file(getFile(), string);
+			FileUtil.write().withAtomic(true).file(getFile(), string);
 		}
 	}
 	public static class LoadSaveFileList<E extends Comparable<E>> extends LoadSaveFileGeneric<List<E>> {
@@ -183,7 +211,8 @@ public class Storage {
 		@Override
 		public void save(List<E> list) {
 			Collections.sort(list);
-			CSVUtil.write(clazz).file(file, list);
+			CSVUtil.write(clazz).withAtomic(true).file(file, list);
+			LoadCache.invalidate(clazz, file);
 		}
 		@Override
 		public String read() {
@@ -191,7 +220,13 @@ public class Storage {
 		}
 		@Override
 		public void write(String string) {
-			FileUtil.write().file(file, string);
+			FileUtil.write().withAtomic(true).file(file, string);
+			LoadCache.invalidate(clazz, file);
+		}
+		
+		// returns unmodifiable list shared with other caller. file is parsed again only when file is changed
+		public List<E> loadCached() {
+			return LoadCache.get(clazz, file, this::load);
 		}
 		
 		
@@ -223,23 +258,61 @@ public class Storage {
 	//
 	// LoadSaveDirectoryXXX
 	//
+	//
+	// Layout of files of LoadSaveDirectory
+	//   FLAT    dir/filename
+	//   PREFIX  dir/first two chars of filename/filename
+	//   HASH    dir/two hex digits of hash code of filename/filename (256 sub directories)
+	// Sharded layout keeps list of filename in index file. So enumeration doesn't walk directories.
+	//
+	public enum Layout {
+		FLAT, PREFIX, HASH;
+		
+		String getSubdir(String filename) {
+			switch(this) {
+			case PREFIX:
+			{
+				char[] ret = {'_', '_'};
+				for(int i = 0; i < ret.length && i < filename.length(); i++) {
+					char c = filename.charAt(i);
+					if (Character.isLetterOrDigit(c)) ret[i] = c;
+				}
+				return new String(ret);
+			}
+			case HASH:
+				// String.hashCode() is same in any jvm
+				return String.format("%02x", filename.hashCode() & 0xFF);
+			default:
+				return null;
+			}
+		}
+	}
+	
 	public static class LoadSaveDirectory implements LoadSave {
 		protected final Storage                  storage;
 		protected final String                   prefix;
 		protected final Function<String, String> opName;
 		protected final File                     dir;
+		protected final Layout                   layout;
 		
-		public LoadSaveDirectory(Storage storage, String prefix, Function<String, String> opName) {
+		public LoadSaveDirectory(Storage storage, String prefix, Function<String, String> opName, Layout layout) {
 			this.storage = storage;
 			this.prefix  = prefix;
 			this.opName  = opName;
 			this.dir     = storage.getFile(prefix);
+			this.layout  = layout;
+		}
+		public LoadSaveDirectory(Storage storage, String prefix, Function<String, String> opName) {
+			this(storage, prefix, opName, Layout.FLAT);
 		}
 		public String getFilename(String name) {
 			return opName.apply(name);
 		}
 		public File getFile(String name) {
-			return new File(dir, getFilename(name));
+			return getFileByFilename(getFilename(name));
+		}
+		private File getFileByFilename(String filename) {
+			return layout == Layout.FLAT ? new File(dir, filename) : new File(new File(dir, layout.getSubdir(filename)), filename);
 		}
 		//
 		// touch file
@@ -251,6 +324,92 @@ public class Storage {
 			return storage.getFile(prefix + ".touch");
 		}
 		//
+		// index of sharded layout. one filename per line. filename is appended when file is written
+		//   Index is rewritten by delist and delete. Filename appended by other process is merged before rewrite.
+		//   If process crashed after write of file and before updateIndex(), file is not in index. rebuildIndex() recovers index from directory.
+		//
+		private Set<String> indexSet = null;
+		public File getIndexFile() {
+			return storage.getFile(prefix + ".index");
+		}
+		private Set<String> getIndexSet() {
+			if (indexSet == null) {
+				File indexFile = getIndexFile();
+				if (indexFile.canRead()) {
+					indexSet = readIndex();
+				} else {
+					rebuildIndex();
+				}
+			}
+			return indexSet;
+		}
+		private Set<String> readIndex() {
+			Set<String> ret = new TreeSet<>();
+			File indexFile = getIndexFile();
+			if (indexFile.canRead()) {
+				for(var line: FileUtil.read().file(indexFile).split("\n")) {
+					if (!line.isEmpty()) ret.add(line);
+				}
+			}
+			return ret;
+		}
+		// called after file of name is written
+		protected synchronized void updateIndex(String name) {
+			if (layout == Layout.FLAT) return;
+			
+			String filename = getFilename(name);
+			if (getIndexSet().add(filename)) {
+				try (var fw = new FileWriter(getIndexFile(), StandardCharsets.UTF_8, true)) {
+					fw.write(filename);
+					fw.write("\n");
+				} catch (IOException e) {
+					String exceptionName = e.getClass().getSimpleName();
+					logger.error("{} {}", exceptionName, e);
+					throw new UnexpectedException(exceptionName, e);
+				}
+			}
+		}
+		// rebuild index from files in directory
+		public synchronized void rebuildIndex() {
+			if (layout == Layout.FLAT) return;
+			
+			indexSet = new TreeSet<>();
+			String[] subdirs = dir.list();
+			if (subdirs != null) {
+				for(var subdir: subdirs) {
+					// File.list() doesn't stat each file
+					String[] filenames = new File(dir, subdir).list();
+					if (filenames == null) continue;
+					for(var filename: filenames) {
+						// skip temporary file of atomic write
+						if (filename.startsWith(".")) continue;
+						if (subdir.equals(layout.getSubdir(filename))) indexSet.add(filename);
+					}
+				}
+			}
+			saveIndex();
+		}
+		private void saveIndex() {
+			// merge filename appended by other process after index was read. filename of removed file is not merged
+			for(var filename: readIndex()) {
+				if (!indexSet.contains(filename) && getFileByFilename(filename).exists()) indexSet.add(filename);
+			}
+			FileUtil.write().withAtomic(true).file(getIndexFile(), indexSet.stream().map(o -> o + "\n").collect(Collectors.joining()));
+		}
+		//
+		// returns sorted filename of files in directory
+		//
+		public synchronized List<String> listFilename() {
+			if (layout == Layout.FLAT) {
+				String[] filenames = dir.list();
+				if (filenames == null) return new ArrayList<>();
+				// skip directory like "." and ".."
+				return Arrays.stream(filenames).filter(o -> !o.startsWith(".")).sorted().collect(Collectors.toList());
+			} else {
+				return new ArrayList<>(getIndexSet());
+			}
+		}
+		//
 		// delistUknonwFiles
 		//
 		public File getDir() {
@@ -264,13 +423,49 @@ public class Storage {
 		}
 		public void delistUnknownFile(Collection<String> validNameCollection, boolean dryRun) {
 			Set<String> validFilenameSet = validNameCollection.stream().map(o -> getFilename(o)).collect(Collectors.toSet());
-			FileUtil.moveUnknownFile(validFilenameSet, getDir(), getDirDelist(), dryRun);
+			if (layout == Layout.FLAT) {
+				FileUtil.moveUnknownFile(validFilenameSet, getDir(), getDirDelist(), dryRun);
+				return;
+			}
+			
+			synchronized (this) {
+				File delistDir = getDirDelist();
+				delistDir.mkdirs();
+				List<String> unknownList = getIndexSet().stream().filter(o -> !validFilenameSet.contains(o)).toList();
+				for(var filename: unknownList) {
+					logger.info("move unknown file {} to {}", filename, delistDir.getPath());
+					if (dryRun) continue;
+					try {
+						Files.move(getFileByFilename(filename).toPath(), new File(delistDir, filename).toPath(), StandardCopyOption.REPLACE_EXISTING);
+					} catch (NoSuchFileException e) {
+						logger.warn("NoSuchFileException    {}", filename);
+					} catch (IOException e) {
+						String exceptionName = e.getClass().getSimpleName();
+						logger.error("{} {}", exceptionName, e.toString());
+						throw new UnexpectedException(exceptionName, e);
+					}
+					indexSet.remove(filename);
+				}
+				if (!dryRun && !unknownList.isEmpty()) saveIndex();
+			}
 		}
 		//
 		// delete file
 		//
 		public void deleteFiles(FileFilter filterOp) {
-			FileUtil.deleteFile(dir, filterOp);
+			if (layout == Layout.FLAT) {
+				FileUtil.deleteFile(dir, filterOp);
+				return;
+			}
+			
+			synchronized (this) {
+				List<String> deleteList = getIndexSet().stream().filter(o -> filterOp.accept(getFileByFilename(o))).toList();
+				for(var filename: deleteList) {
+					FileUtil.delete(getFileByFilename(filename));
+					indexSet.remove(filename);
+				}
+				if (!deleteList.isEmpty()) saveIndex();
+			}
 		}
 	}
 	public abstract static class LoadSaveDirectoryGeneric<T> extends LoadSaveDirectory {
@@ -279,11 +474,17 @@ public class Storage {
 		public abstract String read(String name);
 		public abstract void   write(String name, String value);
 		
+		public LoadSaveDirectoryGeneric(Storage storage, String prefix, Function<String, String> opName, Layout layout) {
+			super(storage, prefix, opName, layout);
+		}
 		public LoadSaveDirectoryGeneric(Storage storage, String prefix, Function<String, String> opName) {
 			super(storage, prefix, opName);
 		}		
 	}
 	public static class LoadSaveDirectoryString extends LoadSaveDirectoryGeneric<String> {
+		public LoadSaveDirectoryString(Storage storage, String prefix, Function<String, String> opName, Layout layout) {
+			super(storage, prefix, opName, layout);
+		}
 		public LoadSaveDirectoryString(Storage storage, String prefix, Function<String, String> opName) {
 			super(storage, prefix, opName);
 		}
@@ -305,16 +506,20 @@ public class Storage {
 
 		@Override
 		public void write(String name, String value) {
-			FileUtil.write().file(getFile(name), value);
+			FileUtil.write().withAtomic(true).file(getFile(name), value);
+			updateIndex(name);
 		}
 	}
 	public static class LoadSaveDirectoryList<E extends Comparable<E>> extends LoadSaveDirectoryGeneric<List<E>> {
-		private final Class<E> clazz;
+		protected final Class<E> clazz;
 		
-		public LoadSaveDirectoryList(Class<E> clazz, Storage storage, String prefix, Function<String, String> opName) {
-			super(storage, prefix, opName);
+		public LoadSaveDirectoryList(Class<E> clazz, Storage storage, String prefix, Function<String, String> opName, Layout layout) {
+			super(storage, prefix, opName, layout);
 			this.clazz = clazz;
 		}
+		public LoadSaveDirectoryList(Class<E> clazz, Storage storage, String prefix, Function<String, String> opName) {
+			this(clazz, storage, prefix, opName, Layout.FLAT);
+		}
 
 		@Override
 		public List<E> load(String name) {
@@ -323,7 +528,9 @@ public class Storage {
 		@Override
 		public void save(String name, List<E> list) {
 			Collections.sort(list);
-			CSVUtil.write(clazz).file(getFile(name), list);
+			CSVUtil.write(clazz).withAtomic(true).file(getFile(name), list);
+			LoadCache.invalidate(clazz, getFile(name));
+			updateIndex(name);
 		}
 		@Override
 		public String read(String name) {
@@ -331,7 +538,14 @@ public class Storage {
 		}
 		@Override
 		public void write(String name, String value) {
-			FileUtil.write().file(getFile(name), value);
+			FileUtil.write().withAtomic(true).file(getFile(name), value);
+			LoadCache.invalidate(clazz, getFile(name));
+			updateIndex(name);
+		}
+		
+		// returns unmodifiable list shared with other caller. file is parsed again only when file is changed
+		public List<E> loadCached(String name) {
+			return LoadCache.get(clazz, getFile(name), () -> load(name));
 		}
 
 		
@@ -340,6 +554,36 @@ public class Storage {
 			return list == null ? new ArrayList<>() : list;
 		}
 		
+		//
+		// load many names in parallel
+		//   files are read and parsed in dedicated fork join pool. so blocking read doesn't occupy common pool
+		//   returned map has same order as names. name that doesn't exist is not included
+		//
+		public Map<String, List<E>> loadAll(Collection<String> names, int threadCount) {
+			List<String> nameList = new ArrayList<>(names);
+			ForkJoinPool pool     = new ForkJoinPool(threadCount);
+			try {
+				// toList() of parallel stream keeps encounter order and accepts null
+				List<List<E>> listList = pool.submit(() -> nameList.parallelStream().map(this::load).toList()).get();
+				
+				Map<String, List<E>> ret = new LinkedHashMap<>();
+				for(int i = 0; i < nameList.size(); i++) {
+					var list = listList.get(i);
+					if (list != null) ret.put(nameList.get(i), list);
+				}
+				return ret;
+			} catch (InterruptedException | ExecutionException e) {
+				String exceptionName = e.getClass().getSimpleName();
+				logger.error("{} {}", exceptionName, e);
+				throw new UnexpectedException(exceptionName, e);
+			} finally {
+				pool.shutdown();
+			}
+		}
+		public Map<String, List<E>> loadAll(Collection<String> names) {
+			return loadAll(names, Runtime.getRuntime().availableProcessors());
+		}
+		
 		// reader
 		public List<E> load(Reader reader) {
 			return CSVUtil.read(clazz).file(reader);
@@ -353,4 +597,88 @@ public class Storage {
 			save(name, new ArrayList<E>(collection));
 		}
 	}
+	//
+	// LoadSaveDirectoryList that stores all entries in one PackedFile prefix.pack instead of one file for each name
+	//   Suitable for many small lists. getFile(name) returns nominal file that doesn't exist.
+	//
+	public static class LoadSaveDirectoryPacked<E extends Comparable<E>> extends LoadSaveDirectoryList<E> {
+		private final PackedFile packedFile;
+		
+		public LoadSaveDirectoryPacked(Class<E> clazz, Storage storage, String prefix, Function<String, String> opName) {
+			super(clazz, storage, prefix, opName);
+			this.packedFile = PackedFile.getInstance(getPackedFile());
+		}
+		
+		public File getPackedFile() {
+			return storage.getFile(prefix + ".pack");
+		}
+		public boolean exists(String name) {
+			return packedFile.contains(getFilename(name));
+		}
+		
+		@Override
+		public List<E> load(String name) {
+			byte[] data = packedFile.read(getFilename(name));
+			if (data == null) return null;
+			return load(new InputStreamReader(new ByteArrayInputStream(data), StandardCharsets.UTF_8));
+		}
+		@Override
+		public void save(String name, List<E> list) {
+			Collections.sort(list);
+			var baos = new ByteArrayOutputStream();
+			CSVUtil.write(clazz).file(new OutputStreamWriter(baos, StandardCharsets.UTF_8), list);
+			packedFile.write(getFilename(name), baos.toByteArray());
+		}
+		@Override
+		public String read(String name) {
+			byte[] data = packedFile.read(getFilename(name));
+			return data == null ? null : new String(data, StandardCharsets.UTF_8);
+		}
+		@Override
+		public void write(String name, String value) {
+			packedFile.write(getFilename(name), value.getBytes(StandardCharsets.UTF_8));
+		}
+		
+		// mtime of packed file changes whenever any entry is written. so LoadCache is not used
+		@Override
+		public List<E> loadCached(String name) {
+			var list = load(name);
+			return list == null ? null : Collections.unmodifiableList(list);
+		}
+		
+		@Override
+		public List<String> listFilename() {
+			return packedFile.keyList();
+		}
+		// unknown entry is written to file in delist directory and removed from packed file
+		@Override
+		public void delistUnknownFile(Collection<String> validNameCollection, boolean dryRun) {
+			Set<String> validFilenameSet = validNameCollection.stream().map(o -> getFilename(o)).collect(Collectors.toSet());
+			File        delistDir        = getDirDelist();
+			for(var filename: packedFile.keyList()) {
+				if (validFilenameSet.contains(filename)) continue;
+				logger.info("move unknown entry {} to {}", filename, delistDir.getPath());
+				if (dryRun) continue;
+				byte[] data = packedFile.read(filename);
+				if (data == null) continue;
+				FileUtil.rawWrite().withAtomic(true).file(new File(delistDir, filename), data);
+				packedFile.delete(filename);
+			}
+		}
+		@Override
+		public void deleteFiles(FileFilter filterOp) {
+			for(var filename: packedFile.keyList()) {
+				if (filterOp.accept(new File(dir, filename))) packedFile.delete(filename);
+			}
+		}
+		
+		// force written entry to storage device
+		public void sync() {
+			packedFile.sync();
+		}
+		// reclaim space of replaced entry now. compaction also runs in background when half of file is garbage
+		public void compact() {
+			packedFile.compact();
+		}
+	}
 }
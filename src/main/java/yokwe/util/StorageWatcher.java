@@ -0,0 +1,275 @@
+package yokwe.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+//
+// Watch files of Storage.LoadSave with WatchService and notify change to listener
+//   Changes of one LoadSave are debounced. Event is sent when no change happened for debounce period.
+//   Event is sent at most maxDelay (10 times of debounce) after first change even if file is changed continuously.
+//   Temporary file of atomic write (name starts with ".") is ignored.
+//   Listener is called in thread of watcher. Long running work should be passed to other thread.
+//
+public final class StorageWatcher implements Closeable {
+	private static final org.slf4j.Logger logger = yokwe.util.LoggerUtil.getLogger();
+	
+	public static final Duration DEFAULT_DEBOUNCE = Duration.ofSeconds(1);
+	
+	public static final class Event {
+		public final Storage.LoadSave loadSave;
+		// name of changed file. for LoadSaveDirectoryPacked, name of packed file
+		public final Set<String>      filenameSet;
+		// true if some events are lost. listener should rescan whole LoadSave
+		public final boolean          overflow;
+		
+		private Event(Storage.LoadSave loadSave, Set<String> filenameSet, boolean overflow) {
+			this.loadSave    = loadSave;
+			this.filenameSet = filenameSet;
+			this.overflow    = overflow;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("{%s %s %s}", loadSave.getClass().getSimpleName(), filenameSet, overflow);
+		}
+	}
+	
+	private static final class Target {
+		final Storage.LoadSave loadSave;
+		final Consumer<Event>  listener;
+		final String           filename; // null means any file in directory
+		
+		Set<String> pendingSet = new TreeSet<>();
+		boolean     overflow   = false;
+		long        firstTime  = 0; // System.nanoTime() of first change. 0 means no change
+		long        lastTime   = 0; // System.nanoTime() of last change
+		
+		Target(Storage.LoadSave loadSave, Consumer<Event> listener, String filename) {
+			this.loadSave = loadSave;
+			this.listener = listener;
+			this.filename = filename;
+		}
+		
+		void change(String name, long now) {
+			if (name == null) {
+				overflow = true;
+			} else {
+				pendingSet.add(name);
+			}
+			if (firstTime == 0) firstTime = now;
+			lastTime = now;
+		}
+	}
+	
+	private static final class Registration {
+		final Path         dir;
+		final List<Target> fileList  = new ArrayList<>(); // target that watches file in dir
+		final List<Target> shardList = new ArrayList<>(); // target of sharded layout. sub directory of dir is watched
+		
+		Registration(Path dir) {
+			this.dir = dir;
+		}
+	}
+	
+	private final long                        debounce;  // in nano seconds
+	private final long                        maxDelay;  // in nano seconds
+	private final WatchService                watchService;
+	private final Map<WatchKey, Registration> keyMap     = new HashMap<>();
+	private final List<Target>                targetList = new ArrayList<>();
+	private Thread                            thread     = null;
+	
+	public StorageWatcher(Duration debounce) {
+		this.debounce = debounce.toNanos();
+		this.maxDelay = this.debounce * 10;
+		try {
+			this.watchService = FileSystems.getDefault().newWatchService();
+		} catch (IOException e) {
+			String exceptionName = e.getClass().getSimpleName();
+			logger.error("{} {}", exceptionName, e);
+			throw new UnexpectedException(exceptionName, e);
+		}
+	}
+	public StorageWatcher() {
+		this(DEFAULT_DEBOUNCE);
+	}
+	
+	//
+	// add LoadSave to watch
+	//
+	public synchronized StorageWatcher add(Storage.LoadSave loadSave, Consumer<Event> listener) {
+		if (loadSave instanceof Storage.LoadSaveDirectoryPacked<?> packed) {
+			addFile(new Target(loadSave, listener, packed.getPackedFile().getName()), packed.getPackedFile());
+		} else if (loadSave instanceof Storage.LoadSaveFile loadSaveFile) {
+			addFile(new Target(loadSave, listener, loadSaveFile.getFile().getName()), loadSaveFile.getFile());
+		} else if (loadSave instanceof Storage.LoadSaveDirectory loadSaveDirectory) {
+			Target target = new Target(loadSave, listener, null);
+			targetList.add(target);
+			File dir = loadSaveDirectory.getDir();
+			if (loadSaveDirectory.layout == Storage.Layout.FLAT) {
+				register(dir.toPath()).fileList.add(target);
+			} else {
+				register(dir.toPath()).shardList.add(target);
+				File[] subdirs = dir.listFiles(File::isDirectory);
+				if (subdirs != null) {
+					for(var subdir: subdirs) register(subdir.toPath()).fileList.add(target);
+				}
+			}
+		} else {
+			logger.error("Unexpected loadSave");
+			logger.error("  loadSave  {}", loadSave.getClass().getName());
+			throw new UnexpectedException("Unexpected loadSave");
+		}
+		return this;
+	}
+	private void addFile(Target target, File file) {
+		targetList.add(target);
+		register(file.getAbsoluteFile().getParentFile().toPath()).fileList.add(target);
+	}
+	// caller must hold lock of this
+	private Registration register(Path dir) {
+		try {
+			// directory of LoadSave can be created at first save
+			dir.toFile().mkdirs();
+			WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+			return keyMap.computeIfAbsent(key, o -> new Registration(dir));
+		} catch (IOException e) {
+			String exceptionName = e.getClass().getSimpleName();
+			logger.error("{} {}", exceptionName, e);
+			logger.error("  dir  {}", dir);
+			throw new UnexpectedException(exceptionName, e);
+		}
+	}
+	
+	//
+	// start and stop
+	//
+	public synchronized StorageWatcher start() {
+		if (thread == null) {
+			thread = new Thread(this::run, "STORAGE-WATCHER");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		return this;
+	}
+	@Override
+	public void close() {
+		try {
+			// take() and poll() of watcher thread throws ClosedWatchServiceException
+			watchService.close();
+		} catch (IOException e) {
+			String exceptionName = e.getClass().getSimpleName();
+			logger.error("{} {}", exceptionName, e);
+			throw new UnexpectedException(exceptionName, e);
+		}
+	}
+	
+	private void run() {
+		try {
+			for(;;) {
+				long     timeout = getTimeout();
+				WatchKey key     = timeout < 0 ? watchService.take() : watchService.poll(timeout, TimeUnit.NANOSECONDS);
+				while(key != null) {
+					handle(key);
+					key = watchService.poll();
+				}
+				fire();
+			}
+		} catch (ClosedWatchServiceException e) {
+			// closed by close()
+		} catch (InterruptedException e) {
+			String exceptionName = e.getClass().getSimpleName();
+			logger.warn("{} {}", exceptionName, e);
+		}
+	}
+	// returns nano seconds until next event. negative means no pending change
+	private synchronized long getTimeout() {
+		long now = System.nanoTime();
+		long ret = -1;
+		for(var target: targetList) {
+			if (target.firstTime == 0) continue;
+			long due     = Math.min(target.lastTime + debounce, target.firstTime + maxDelay);
+			long timeout = Math.max(1, due - now);
+			if (ret < 0 || timeout < ret) ret = timeout;
+		}
+		return ret;
+	}
+	private synchronized void handle(WatchKey key) {
+		Registration registration = keyMap.get(key);
+		if (registration != null) {
+			long now = System.nanoTime();
+			for(var event: key.pollEvents()) {
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					for(var target: registration.fileList)  target.change(null, now);
+					for(var target: registration.shardList) target.change(null, now);
+					continue;
+				}
+				
+				String name = ((Path)event.context()).toString();
+				// skip temporary file of atomic write
+				if (name.startsWith(".")) continue;
+				
+				for(var target: registration.fileList) {
+					if (target.filename == null || target.filename.equals(name)) target.change(name, now);
+				}
+				if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && !registration.shardList.isEmpty()) {
+					Path subdir = registration.dir.resolve(name);
+					if (!subdir.toFile().isDirectory()) continue;
+					Registration subRegistration = register(subdir);
+					subRegistration.fileList.addAll(registration.shardList);
+					// file can be created before sub directory is registered
+					String[] filenames = subdir.toFile().list();
+					if (filenames == null) continue;
+					for(var filename: filenames) {
+						if (filename.startsWith(".")) continue;
+						for(var target: registration.shardList) target.change(filename, now);
+					}
+				}
+			}
+		}
+		if (!key.reset()) keyMap.remove(key);
+	}
+	private void fire() {
+		List<Target> targets = new ArrayList<>();
+		List<Event>  events  = new ArrayList<>();
+		synchronized (this) {
+			long now = System.nanoTime();
+			for(var target: targetList) {
+				if (target.firstTime == 0) continue;
+				if (now < target.lastTime + debounce && now < target.firstTime + maxDelay) continue;
+				
+				targets.add(target);
+				events.add(new Event(target.loadSave, Collections.unmodifiableSet(target.pendingSet), target.overflow));
+				target.pendingSet = new TreeSet<>();
+				target.overflow   = false;
+				target.firstTime  = 0;
+			}
+		}
+		// call listener without lock
+		for(int i = 0; i < targets.size(); i++) {
+			try {
+				targets.get(i).listener.accept(events.get(i));
+			} catch (RuntimeException e) {
+				String exceptionName = e.getClass().getSimpleName();
+				logger.error("{} {}", exceptionName, e);
+				logger.error("  event  {}", events.get(i));
+			}
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package yokwe.util.http;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import org.apache.hc.core5.http.HttpStatus;
+
+//
+// Circuit breaker of one host used by TaskQueue
+//   CLOSED     request is sent as usual. failureThreshold consecutive failures open circuit.
+//   OPEN       no request is sent until openDuration passed. task of host stays in queue.
+//   HALF_OPEN  one request is sent as probe. success closes circuit and failure opens circuit again.
+// Circuit that opened MAX_OPEN_COUNT times without success is exhausted. TaskQueue drops task of the host.
+// Not thread safe. Caller must synchronize. (TaskQueue calls under its lock)
+//
+final class CircuitBreaker {
+	private static final org.slf4j.Logger logger = yokwe.util.LoggerUtil.getLogger();
+	
+	private static final int MAX_OPEN_COUNT = 5;
+	
+	enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+	
+	// returns true if result shows host is in trouble
+	static boolean isFailure(int code) {
+		return code == HttpStatus.SC_TOO_MANY_REQUESTS || HttpStatus.SC_SERVER_ERROR <= code;
+	}
+	
+	private final String   host;
+	private final int      failureThreshold;
+	private final Duration openDuration;
+	
+	private State    state        = State.CLOSED;
+	private int      failureCount = 0;     // consecutive failure
+	private int      openCount    = 0;     // consecutive open without success
+	private Instant  retryTime    = null;  // end of OPEN state
+	private boolean  probing      = false; // probe request of HALF_OPEN is running
+	
+	CircuitBreaker(String host, int failureThreshold, Duration openDuration) {
+		this.host             = host;
+		this.failureThreshold = failureThreshold;
+		this.openDuration     = openDuration;
+	}
+	
+	State getState() {
+		return state;
+	}
+	Instant getRetryTime() {
+		return retryTime;
+	}
+	// returns true if host looks dead
+	boolean isExhausted() {
+		return MAX_OPEN_COUNT <= openCount;
+	}
+	
+	// returns true if request can be sent now
+	boolean isAvailable(Instant now) {
+		switch(state) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			if (now.isBefore(retryTime)) return false;
+			logger.info("circuit half open  {}", host);
+			state   = State.HALF_OPEN;
+			probing = false;
+			return true;
+		case HALF_OPEN:
+			return !probing;
+		default:
+			return false;
+		}
+	}
+	// called when request is sent
+	void onStart() {
+		if (state == State.HALF_OPEN) probing = true;
+	}
+	
+	// called when polled task finished without request. the task was probe if probing
+	void onCancel() {
+		probing = false;
+	}
+	void onSuccess() {
+		if (state != State.CLOSED) logger.info("circuit closed  {}", host);
+		state        = State.CLOSED;
+		failureCount = 0;
+		openCount    = 0;
+		retryTime    = null;
+		probing      = false;
+	}
+	void onFailure(Instant now) {
+		switch(state) {
+		case CLOSED:
+			if (++failureCount < failureThreshold) return;
+			break;
+		case HALF_OPEN:
+			break;
+		case OPEN:
+			// failure of request sent before circuit opened
+			return;
+		}
+		
+		state        = State.OPEN;
+		failureCount = 0;
+		openCount++;
+		retryTime    = now.plus(openDuration);
+		probing      = false;
+		logger.warn("circuit open  {}  {} / {}", host, openCount, MAX_OPEN_COUNT);
+	}
+}
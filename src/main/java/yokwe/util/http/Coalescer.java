@@ -0,0 +1,153 @@
+package yokwe.util.http;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.Method;
+
+//
+// Coalesce concurrent tasks of same request (method, uri, entity and request header).
+// First task of same request becomes leader and execute request. Other tasks wait result of leader.
+// If ttl is not zero, result is memoized and reused until ttl is expired.
+// Only GET and HEAD are coalesced. Request of other method is always executed.
+//
+public final class Coalescer {
+	private static final org.slf4j.Logger logger = yokwe.util.LoggerUtil.getLogger();
+
+	private static final Coalescer instance = new Coalescer(Duration.ZERO);
+	public static Coalescer getInstance() {
+		return instance;
+	}
+
+	private static final class Key {
+		private final Method       method;
+		private final URI          uri;
+		private final byte[]       entity;
+		private final List<String> headerList;
+		private final int          hashCode;
+
+		// headerList is header of Download like Cookie and User-Agent. request of different header is not same request
+		Key(Task task, List<Header> headerList) {
+			this.method     = task.method;
+			this.uri        = task.uri;
+			this.entity     = task.entity;
+			this.headerList = Stream.concat(headerList.stream(), task.headerList.stream()).map(o -> o.getName() + ": " + o.getValue()).toList();
+			this.hashCode   = ((method.hashCode() * 31 + uri.hashCode()) * 31 + Arrays.hashCode(entity)) * 31 + this.headerList.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof Key) {
+				Key that = (Key)o;
+				return this.hashCode == that.hashCode && this.method == that.method && this.uri.equals(that.uri) &&
+					Arrays.equals(this.entity, that.entity) && this.headerList.equals(that.headerList);
+			} else {
+				return false;
+			}
+		}
+	}
+
+	private static final class Entry {
+		final CompletableFuture<Result> future = new CompletableFuture<>();
+		volatile long expireTime = Long.MAX_VALUE; // in nano time
+
+		boolean isExpired(long now) {
+			return future.isDone() && expireTime <= now;
+		}
+	}
+
+	public final class Flight {
+		private final Key   key;   // null means request is not coalesced
+		private final Entry entry;
+
+		private Flight(Key key, Entry entry) {
+			this.key   = key;
+			this.entry = entry;
+		}
+
+		public void complete(Result result) {
+			if (entry.future.isDone()) return;
+			if (key == null) {
+				// not coalesced
+			} else if (ttl.isZero()) {
+				map.remove(key, entry);
+			} else {
+				entry.expireTime = System.nanoTime() + ttl.toNanos();
+			}
+			entry.future.complete(result);
+		}
+		// fail() after complete() is ignored. So caller can call fail() in any error path
+		public void fail(Throwable e) {
+			if (entry.future.isDone()) return;
+			// don't memoize failure
+			if (key != null) map.remove(key, entry);
+			entry.future.completeExceptionally(e);
+		}
+	}
+
+	private final ConcurrentHashMap<Key, Entry> map = new ConcurrentHashMap<>();
+	private final Duration                      ttl;
+	private final AtomicInteger                 acquireCount   = new AtomicInteger();
+	private final AtomicInteger                 coalescedCount = new AtomicInteger();
+
+	public Coalescer(Duration ttl) {
+		this.ttl = ttl;
+	}
+
+	//
+	// Returns Flight if caller is leader. Caller must execute request and call Flight.complete() or Flight.fail().
+	// Returns null if task is attached to in-flight or memoized request. callback is called with result of leader.
+	//
+	public Flight acquire(Task task, List<Header> headerList, BiConsumer<Result, Throwable> callback) {
+		// request that is not idempotent must be executed for each task
+		if (task.method != Method.GET && task.method != Method.HEAD) return new Flight(null, new Entry());
+
+		final Key  key = new Key(task, headerList);
+		final long now = System.nanoTime();
+
+		if ((acquireCount.incrementAndGet() % 1000) == 0) {
+			// purge expired memoized entry
+			map.entrySet().removeIf(o -> o.getValue().isExpired(now));
+		}
+
+		for(;;) {
+			Entry newEntry = new Entry();
+			Entry entry    = map.putIfAbsent(key, newEntry);
+			if (entry == null) {
+				return new Flight(key, newEntry);
+			}
+			if (entry.isExpired(now)) {
+				map.remove(key, entry);
+				continue;
+			}
+
+			coalescedCount.incrementAndGet();
+			logger.debug("coalesce  {} {}", task.method, task.uri);
+			entry.future.whenComplete((result, e) -> {
+				try {
+					callback.accept(result == null ? null : new Result(task, result), e);
+				} catch (RuntimeException re) {
+					String exceptionName = re.getClass().getSimpleName();
+					logger.warn("{} {}", exceptionName, re);
+				}
+			});
+			return null;
+		}
+	}
+
+	public int getCoalescedCount() {
+		return coalescedCount.get();
+	}
+}
@@ -0,0 +1,132 @@
+package yokwe.util.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.brotli.dec.BrotliInputStream;
+
+import io.airlift.compress.zstd.ZstdInputStream;
+import yokwe.util.UnexpectedException;
+
+//
+// Decode content of http response based on Content-Encoding header
+//
+public final class ContentEncoding {
+	private static final org.slf4j.Logger logger = yokwe.util.LoggerUtil.getLogger();
+
+	public static final String HEADER_ACCEPT_ENCODING  = "Accept-Encoding";
+	public static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+
+	// value of Accept-Encoding header. list all supported encoding
+	public static final String ACCEPT_ENCODING = "gzip, deflate, br, zstd";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	// contentEncoding can be null or list of encoding like "gzip, br"
+	public static InputStream decode(String contentEncoding, InputStream is) throws IOException {
+		if (contentEncoding == null) return is;
+
+		// encodings are listed in the order in which they were applied. decode in reverse order
+		String[] encodings = contentEncoding.split(",");
+		for(int i = encodings.length - 1; 0 <= i; i--) {
+			is = decodeOne(encodings[i].trim(), is);
+		}
+		return is;
+	}
+	public static byte[] decode(String contentEncoding, byte[] data) throws IOException {
+		if (contentEncoding == null || data == null) return data;
+
+		try (InputStream is = decode(contentEncoding, new ByteArrayInputStream(data))) {
+			return is.readAllBytes();
+		}
+	}
+
+	private static InputStream decodeOne(String encoding, InputStream is) throws IOException {
+		switch(encoding.toLowerCase()) {
+		case "":
+		case "identity":
+			return is;
+		case "gzip":
+		case "x-gzip":
+			return new GZIPInputStream(is, BUFFER_SIZE);
+		case "deflate":
+			return inflate(is);
+		case "br":
+		case "zstd":
+			try {
+				return new DecodeErrorInputStream(encoding.equalsIgnoreCase("br") ? new BrotliInputStream(is) : new ZstdInputStream(is));
+			} catch (RuntimeException e) {
+				throw new IOException(e);
+			}
+		default:
+			logger.error("Unexpected content encoding");
+			logger.error("  {}!", encoding);
+			throw new UnexpectedException("Unexpected content encoding");
+		}
+	}
+
+	// "deflate" should be zlib format (RFC 1950). But some server sends raw deflate (RFC 1951).
+	private static InputStream inflate(InputStream is) throws IOException {
+		PushbackInputStream pis = new PushbackInputStream(is, 2);
+		int cmf = pis.read();
+		int flg = pis.read();
+		if (flg != -1) pis.unread(flg);
+		if (cmf != -1) pis.unread(cmf);
+
+		boolean zlib = cmf != -1 && flg != -1 && (cmf & 0x0F) == 8 && ((cmf << 8) | flg) % 31 == 0;
+		return new InflaterInputStream(pis, new Inflater(!zlib), BUFFER_SIZE);
+	}
+
+	// BrotliInputStream and ZstdInputStream throw RuntimeException for corrupted data. Report it as IOException
+	private static final class DecodeErrorInputStream extends FilterInputStream {
+		DecodeErrorInputStream(InputStream in) {
+			super(in);
+		}
+		@Override
+		public int read() throws IOException {
+			try {
+				return in.read();
+			} catch (RuntimeException e) {
+				throw new IOException(e);
+			}
+		}
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			try {
+				return in.read(b, off, len);
+			} catch (RuntimeException e) {
+				throw new IOException(e);
+			}
+		}
+		@Override
+		public long skip(long n) throws IOException {
+			try {
+				return in.skip(n);
+			} catch (RuntimeException e) {
+				throw new IOException(e);
+			}
+		}
+		@Override
+		public int available() throws IOException {
+			try {
+				return in.available();
+			} catch (RuntimeException e) {
+				throw new IOException(e);
+			}
+		}
+		@Override
+		public void close() throws IOException {
+			try {
+				in.close();
+			} catch (RuntimeException e) {
+				throw new IOException(e);
+			}
+		}
+	}
+}
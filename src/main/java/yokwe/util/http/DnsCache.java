@@ -0,0 +1,76 @@
+package yokwe.util.http;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hc.core5.function.Resolver;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.URIScheme;
+
+//
+// Cache of resolved address of host used by HttpRequester
+//   Entry is valid for ttl seconds. Expired entry is used when resolve failed.
+//   Resolved addresses are used in round robin order.
+//
+final class DnsCache implements Resolver<HttpHost, InetSocketAddress> {
+	private static final org.slf4j.Logger logger = yokwe.util.LoggerUtil.getLogger();
+	
+	private static final class Entry {
+		final InetAddress[] addresses;
+		final long          expireTime; // in nano time
+		int                 next = 0;
+		
+		Entry(InetAddress[] addresses, long expireTime) {
+			this.addresses  = addresses;
+			this.expireTime = expireTime;
+		}
+		
+		synchronized InetAddress get() {
+			InetAddress ret = addresses[next];
+			next = (next + 1) % addresses.length;
+			return ret;
+		}
+	}
+	
+	private final ConcurrentHashMap<String, Entry> map = new ConcurrentHashMap<>();
+	private final long                             ttl; // in nano
+	
+	DnsCache(int ttlSeconds) {
+		this.ttl = ttlSeconds * 1_000_000_000L;
+	}
+	
+	@Override
+	public InetSocketAddress resolve(HttpHost host) {
+		if (host == null) return null;
+		
+		int port = host.getPort();
+		if (port < 0) port = URIScheme.HTTPS.same(host.getSchemeName()) ? 443 : 80;
+		
+		InetAddress address = host.getAddress();
+		if (address == null) address = resolve(host.getHostName());
+		// unresolved address causes UnknownHostException at connect like DefaultAddressResolver
+		return address == null ? InetSocketAddress.createUnresolved(host.getHostName(), port) : new InetSocketAddress(address, port);
+	}
+	
+	// returns null if host cannot be resolved
+	InetAddress resolve(String hostName) {
+		long  now   = System.nanoTime();
+		Entry entry = map.get(hostName);
+		if (entry != null && now < entry.expireTime) return entry.get();
+		
+		try {
+			Entry newEntry = new Entry(InetAddress.getAllByName(hostName), now + ttl);
+			map.put(hostName, newEntry);
+			return newEntry.get();
+		} catch (UnknownHostException e) {
+			if (entry != null) {
+				// use stale entry rather than fail
+				logger.warn("use stale address  {}  {}", hostName, e.getMessage());
+				return entry.get();
+			}
+			return null;
+		}
+	}
+}
@@ -11,8 +11,11 @@ public interface Download {
 	public Download setUserAgent(String value);
 	
 	public Download setThreadCount(int newValue);
+	public Download setMaxPerHost(int newValue); // max running task per host. 0 means defaultMaxPerRoute of RequesterBuilder
 	public Download setConnectionTimeout(int newValue); // in seconds
 	public Download setProgressInterval(int newValue);
+	public Download setCoalescer(Coalescer newValue); // null to disable coalescing
+	public Download setCircuitBreaker(int failureThreshold, int openDuration); // open duration in seconds. failureThreshold 0 disables circuit breaker
 	
 	public void startProcessTask();
 	public void waitProcessTask();
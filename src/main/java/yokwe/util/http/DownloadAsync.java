@@ -1,17 +1,15 @@
 package yokwe.util.http;
 
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
-import javax.net.ssl.SSLEngine;
-import javax.net.ssl.SSLException;
-
 import org.apache.hc.core5.concurrent.FutureCallback;
 import org.apache.hc.core5.http.Header;
 import org.apache.hc.core5.http.HttpHost;
@@ -27,18 +25,8 @@ import org.apache.hc.core5.http.nio.AsyncRequestProducer;
 import org.apache.hc.core5.http.nio.AsyncResponseConsumer;
 import org.apache.hc.core5.http.nio.entity.BasicAsyncEntityConsumer;
 import org.apache.hc.core5.http.nio.entity.BasicAsyncEntityProducer;
-import org.apache.hc.core5.http.nio.ssl.TlsStrategy;
 import org.apache.hc.core5.http.nio.support.BasicRequestProducer;
 import org.apache.hc.core5.http.nio.support.BasicResponseConsumer;
-import org.apache.hc.core5.http2.config.H2Config;
-import org.apache.hc.core5.http2.impl.nio.bootstrap.H2RequesterBootstrap;
-import org.apache.hc.core5.http2.ssl.H2ClientTlsStrategy;
-import org.apache.hc.core5.io.CloseMode;
-import org.apache.hc.core5.net.NamedEndpoint;
-import org.apache.hc.core5.reactor.IOReactorConfig;
-import org.apache.hc.core5.reactor.ssl.SSLSessionVerifier;
-import org.apache.hc.core5.reactor.ssl.TlsDetails;
-import org.apache.hc.core5.ssl.SSLContexts;
 import org.apache.hc.core5.util.Timeout;
 
 import yokwe.util.UnexpectedException;
@@ -49,49 +37,18 @@ import yokwe.util.UnexpectedException;
 public final class DownloadAsync implements Download {
 	private static final org.slf4j.Logger logger = yokwe.util.LoggerUtil.getLogger();
 
-	private HttpAsyncRequester requester = null;
+	private RequesterBuilder   requesterBuilder = null;
+	private HttpAsyncRequester requester        = null;
 	
+	private int defaultMaxPerRoute = 0;
 	public DownloadAsync setRequesterBuilder(RequesterBuilder requesterBuilder) {
-        H2Config h2Config = H2Config.custom()
-                .setPushEnabled(false)
-                .build();
-        
-        IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
-        		.setSoTimeout(requesterBuilder.soTimeout, TimeUnit.SECONDS)
-        		.build();
-        
-        TlsStrategy tlsStrategy = new H2ClientTlsStrategy(SSLContexts.createSystemDefault(), new SSLSessionVerifier() {
-            @Override
-            public TlsDetails verify(final NamedEndpoint endpoint, final SSLEngine sslEngine) throws SSLException {
-                // IMPORTANT uncomment the following line when running Java 9 or older
-                // in order to avoid the illegal reflective access operation warning
-            	return new TlsDetails(sslEngine.getSession(), sslEngine.getApplicationProtocol());
-            }
-        });
-        
-		requester = H2RequesterBootstrap.bootstrap()
-				.setH2Config(h2Config)
-                .setIOReactorConfig(ioReactorConfig)
-                .setMaxTotal(requesterBuilder.maxTotal)
-                .setDefaultMaxPerRoute(requesterBuilder.defaultMaxPerRoute)
-                .setVersionPolicy(requesterBuilder.versionPolicy)
-                .setTlsStrategy(tlsStrategy)
-                .create();
-		
-        Runtime.getRuntime().addShutdownHook(new Thread() {
-            @Override
-            public void run() {
-            	logger.info("{}", "HTTP requester shutting down");
-                requester.close(CloseMode.GRACEFUL);
-           }
-        });
-        
-        requester.start(); // Need to start
-        
+		this.requesterBuilder = requesterBuilder;
+		defaultMaxPerRoute = requesterBuilder.defaultMaxPerRoute;
+		requester          = requesterBuilder.getHttpAsyncRequester();
         return this;
 	}
 	
-	private final LinkedList<Task> taskQueue = new LinkedList<Task>();
+	private final TaskQueue taskQueue = new TaskQueue();
 	public DownloadAsync addTask(Task task) {
 		taskQueue.add(task);
         return this;
@@ -121,6 +78,12 @@ public final class DownloadAsync implements Download {
         return this;
 	}
 	
+	private int maxPerHost = 0;
+	public DownloadAsync setMaxPerHost(int newValue) {
+		maxPerHost = newValue;
+		return this;
+	}
+	
 	private int connectionTimeout = 10;
 	public DownloadAsync setConnectionTimeout(int newValue) {
 		this.connectionTimeout = newValue;
@@ -132,6 +95,21 @@ public final class DownloadAsync implements Download {
 		this.progressInterval = newValue;
 		return this;
 	}
+	
+	private Coalescer coalescer = Coalescer.getInstance();
+	public DownloadAsync setCoalescer(Coalescer newValue) {
+		this.coalescer = newValue;
+		return this;
+	}
+	
+	// circuit of host opens after failureThreshold consecutive failures (exception, 429 or 5xx)
+	private int failureThreshold = 5;
+	private int openDuration     = 30;
+	public DownloadAsync setCircuitBreaker(int failureThreshold, int openDuration) {
+		this.failureThreshold = failureThreshold;
+		this.openDuration     = openDuration;
+		return this;
+	}
 
 	private ExecutorService executor      = null;
 	private int 		    taskQueueSize = 0;
@@ -142,13 +120,18 @@ public final class DownloadAsync implements Download {
 		if (requester == null) {
 			logger.warn("Set requester using default value of RequestBuilder");
 			// Set requester using default value of RequestBuilder
-			setRequesterBuilder(RequesterBuilder.custom());
+			setRequesterBuilder(RequesterBuilder.getDefault());
 		}
+		// open connection before run to avoid burst of connect at start
+		requesterBuilder.warmUpAsync(taskQueue.getHostList());
 		taskQueueSize = taskQueue.size();
+		taskQueue.setMaxPerHost(maxPerHost == 0 ? defaultMaxPerRoute : maxPerHost);
+		taskQueue.setCircuitBreaker(failureThreshold, Duration.ofSeconds(openDuration));
 		
 		executor = Executors.newFixedThreadPool(threadCount);
 		
 		stopLatch = new CountDownLatch(taskQueueSize);
+		taskQueue.setDropListener(o -> stopLatch.countDown());
 
 		workerArray = new Worker[threadCount];
 		for(int i = 0; i < threadCount; i++) {
@@ -169,6 +152,9 @@ public final class DownloadAsync implements Download {
 			String exceptionName = e.getClass().getSimpleName();
 			logger.warn("{} {}", exceptionName, e);
 		} finally {
+			if (taskQueue.getDropCount() != 0) {
+				logger.warn("dropped task  {}", taskQueue.getDropCount());
+			}
 			executor      = null;
 			stopLatch     = null;
 			taskQueueSize = 0;
@@ -210,23 +196,45 @@ public final class DownloadAsync implements Download {
 			for(;;) {
 				final int  count;
 				final Task task;
-				synchronized (taskQueue) {
-					count = taskQueueSize - taskQueue.size();
-					task  = taskQueue.poll();
-				}
+				task  = taskQueue.poll();
 				if (task == null) break;
+				count = taskQueueSize - taskQueue.size() - 1;
 				
 				if ((count % progressInterval) == 0) {
 					logger.info("{}", String.format("%4d / %4d  %s", count, taskQueueSize, task.uri));
 				}
 				runCount++;
+				
+				// coalesce with in-flight or memoized request of other task
+				final Coalescer.Flight flight;
+				if (coalescer != null) {
+					flight = coalescer.acquire(task, headerList, (r, e) -> {
+						try {
+							if (r != null) task.process(r);
+						} finally {
+							stopLatch.countDown();
+						}
+					});
+					if (flight == null) {
+						taskQueue.done(task);
+						continue;
+					}
+				} else {
+					flight = null;
+				}
 
+				AsyncClientEndpoint clientEndpoint = null;
 	            try {
 					HttpHost target = HttpHost.create(task.uri);
-					AsyncClientEndpoint clientEndpoint = requester.connect(target, Timeout.ofSeconds(connectionTimeout)).get(); // FIXME connectionTimeout
+					clientEndpoint = requester.connect(target, Timeout.ofSeconds(connectionTimeout)).get(); // FIXME connectionTimeout
+					final AsyncClientEndpoint endpoint = clientEndpoint;
 					
 		            HttpRequest request = new BasicHttpRequest(task.method, task.uri);
 		            headerList.forEach(o -> request.addHeader(o));
+		            task.headerList.forEach(o -> request.addHeader(o));
+		            if (!request.containsHeader(ContentEncoding.HEADER_ACCEPT_ENCODING)) {
+		            	request.setHeader(ContentEncoding.HEADER_ACCEPT_ENCODING, ContentEncoding.ACCEPT_ENCODING);
+		            }
 		            
 		            AsyncEntityProducer asyncEnttityProducer = null;
 		            if (task.entity != null) {
@@ -238,16 +246,32 @@ public final class DownloadAsync implements Download {
 		            FutureCallback<Message<HttpResponse, byte[]>>        futureCallback   = new FutureCallback<Message<HttpResponse, byte[]>>() {
 		        	    @Override
 		        	    public void completed(final Message<HttpResponse, byte[]> message) {
-		        	        clientEndpoint.releaseAndReuse();
-		        	        
-		        	        Result result = new Result(task, message);
-		        	        task.process(result);
-		        	        stopLatch.countDown();
+		        	        endpoint.releaseAndReuse();
+		        	        // exception thrown in reactor thread is lost. catch it here so waitProcessTask() doesn't wait forever
+		        	        boolean done = false;
+		        	        try {
+		        	        	Result result = new Result(task, message);
+		        	        	taskQueue.done(task, !CircuitBreaker.isFailure(result.code));
+		        	        	done = true;
+		        	        	
+		        	        	if (flight != null) flight.complete(result);
+		        	        	task.process(result);
+		        	        } catch (RuntimeException e) {
+		        	        	if (flight != null) flight.fail(e);
+		        	        	if (!done) taskQueue.done(task, false);
+		        	        	logger.warn("failed {}", task.uri);
+		        	        	String exceptionName = e.getClass().getSimpleName();
+		        	        	logger.warn("{} {}", exceptionName, e);
+		        	        } finally {
+		        	        	stopLatch.countDown();
+		        	        }
 		        	    }
 
 		        	    @Override
 		        	    public void failed(final Exception e) {
-		        	        clientEndpoint.releaseAndDiscard();
+		        	        endpoint.releaseAndDiscard();
+		        	        if (flight != null) flight.fail(e);
+		        	        taskQueue.done(task, false);
 		        	        logger.warn("failed {}", task.uri);
 		        			String exceptionName = e.getClass().getSimpleName();
 		        			logger.warn("{} {}", exceptionName, e);
@@ -256,16 +280,25 @@ public final class DownloadAsync implements Download {
 
 		        	    @Override
 		        	    public void cancelled() {
-		        	        clientEndpoint.releaseAndDiscard();
+		        	        endpoint.releaseAndDiscard();
+		        	        if (flight != null) flight.fail(new CancellationException());
+		        	        taskQueue.done(task);
 		        	        logger.warn("cancelled {}", task.uri);
 		        	        stopLatch.countDown();
 		        	    }
 		            };
 
+		            task.sendTime = System.nanoTime();
+		            // futureCallback is responsible for task after execute()
 		            clientEndpoint.execute(requestProducer, responseConsumer, futureCallback);
-				} catch (InterruptedException | ExecutionException e) {
+				} catch (InterruptedException | ExecutionException | RuntimeException e) {
+					// RuntimeException like error of header or content type must fail flight too. Otherwise follower waits forever
+					if (clientEndpoint != null) clientEndpoint.releaseAndDiscard();
+					if (flight != null) flight.fail(e);
+					taskQueue.done(task, false);
 					String exceptionName = e.getClass().getSimpleName();
 					logger.warn("{} {}", exceptionName, e);
+					stopLatch.countDown();
 				}
 			}
 		}
@@ -1,11 +1,12 @@
 package yokwe.util.http;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.hc.core5.http.ClassicHttpRequest;
@@ -15,14 +16,11 @@ import org.apache.hc.core5.http.HttpEntity;
 import org.apache.hc.core5.http.HttpException;
 import org.apache.hc.core5.http.HttpHost;
 import org.apache.hc.core5.http.impl.bootstrap.HttpRequester;
-import org.apache.hc.core5.http.impl.bootstrap.RequesterBootstrap;
 import org.apache.hc.core5.http.io.HttpClientResponseHandler;
-import org.apache.hc.core5.http.io.SocketConfig;
 import org.apache.hc.core5.http.io.entity.HttpEntities;
 import org.apache.hc.core5.http.message.BasicClassicHttpRequest;
 import org.apache.hc.core5.http.message.BasicHeader;
 import org.apache.hc.core5.http.protocol.HttpCoreContext;
-import org.apache.hc.core5.io.CloseMode;
 import org.apache.hc.core5.util.Timeout;
 
 import yokwe.util.UnexpectedException;
@@ -30,31 +28,19 @@ import yokwe.util.UnexpectedException;
 public final class DownloadSync implements Download {
 	private static final org.slf4j.Logger logger = yokwe.util.LoggerUtil.getLogger();
 
-	private HttpRequester requester = null;
+	private RequesterBuilder requesterBuilder = null;
+	private HttpRequester    requester        = null;
 	
+	private int defaultMaxPerRoute = 0;
 	public DownloadSync setRequesterBuilder(RequesterBuilder requesterBuilder) {
-		SocketConfig socketConfig = SocketConfig.custom()
-                .setSoTimeout(requesterBuilder.soTimeout, TimeUnit.SECONDS)
-                .build();
-		
-		requester = RequesterBootstrap.bootstrap()
-                .setSocketConfig(socketConfig)
-                .setMaxTotal(requesterBuilder.maxTotal)
-                .setDefaultMaxPerRoute(requesterBuilder.defaultMaxPerRoute)
-                .create();
-		
-        Runtime.getRuntime().addShutdownHook(new Thread() {
-            @Override
-            public void run() {
-            	logger.info("{}", "HTTP requester shutting down");
-                requester.close(CloseMode.GRACEFUL);
-           }
-        });
-        
+		this.requesterBuilder = requesterBuilder;
+		defaultMaxPerRoute = requesterBuilder.defaultMaxPerRoute;
+		// requester is shared with other user of requesterBuilder
+		requester = requesterBuilder.getHttpRequester();
         return this;
 	}
 	
-	private final LinkedList<Task> taskQueue = new LinkedList<Task>();
+	private final TaskQueue taskQueue = new TaskQueue();
 	public DownloadSync addTask(Task task) {
 		taskQueue.add(task);
 		return this;
@@ -84,6 +70,12 @@ public final class DownloadSync implements Download {
 		return this;
 	}
 	
+	private int maxPerHost = 0;
+	public DownloadSync setMaxPerHost(int newValue) {
+		maxPerHost = newValue;
+		return this;
+	}
+	
 	private int connectionTimeout = 30;
 	public DownloadSync setConnectionTimeout(int newValue) {
 		this.connectionTimeout = newValue;
@@ -96,6 +88,22 @@ public final class DownloadSync implements Download {
 		return this;
 	}
 	
+	private Coalescer coalescer = Coalescer.getInstance();
+	public DownloadSync setCoalescer(Coalescer newValue) {
+		this.coalescer = newValue;
+		return this;
+	}
+	
+	// circuit of host opens after failureThreshold consecutive failures (exception, 429 or 5xx)
+	private int failureThreshold = 5;
+	private int openDuration     = 30;
+	public DownloadSync setCircuitBreaker(int failureThreshold, int openDuration) {
+		this.failureThreshold = failureThreshold;
+		this.openDuration     = openDuration;
+		return this;
+	}
+	
+	private final Phaser    pendingPhaser = new Phaser(1);
 	private ExecutorService executor      = null;
 	private int 		    taskQueueSize = 0;
 	private Worker[]        workerArray   = null;
@@ -103,9 +111,13 @@ public final class DownloadSync implements Download {
 		if (requester == null) {
 			logger.warn("Set requester using default value of RequestBuilder");
 			// Set requester using default value of RequestBuilder
-			setRequesterBuilder(RequesterBuilder.custom());
+			setRequesterBuilder(RequesterBuilder.getDefault());
 		}
+		// open connection before run to avoid burst of connect at start
+		requesterBuilder.warmUp(taskQueue.getHostList());
 		taskQueueSize = taskQueue.size();
+		taskQueue.setMaxPerHost(maxPerHost == 0 ? defaultMaxPerRoute : maxPerHost);
+		taskQueue.setCircuitBreaker(failureThreshold, Duration.ofSeconds(openDuration));
 		
 		executor = Executors.newFixedThreadPool(threadCount);
 		
@@ -123,10 +135,15 @@ public final class DownloadSync implements Download {
 		try {
 			executor.shutdown();
 			executor.awaitTermination(1, TimeUnit.DAYS);
+			// wait for task coalesced with request of other thread
+			pendingPhaser.arriveAndAwaitAdvance();
 		} catch (InterruptedException e) {
 			String exceptionName = e.getClass().getSimpleName();
 			logger.warn("{} {}", exceptionName, e);
 		} finally {
+			if (taskQueue.getDropCount() != 0) {
+				logger.warn("dropped task  {}", taskQueue.getDropCount());
+			}
 			executor      = null;
 			taskQueueSize = 0;
 		}
@@ -169,22 +186,46 @@ public final class DownloadSync implements Download {
 			for(;;) {
 				final int  count;
 				final Task task;
-				synchronized (taskQueue) {
-					count = taskQueueSize - taskQueue.size();
-					task  = taskQueue.poll();
-				}
+				task  = taskQueue.poll();
 				if (task == null) break;
+				count = taskQueueSize - taskQueue.size() - 1;
 				
 				if ((count % progressInterval) == 0) {
 					logger.info("{}", String.format("%4d / %4d  %s", count, taskQueueSize, task.uri));
 				}
 				runCount++;
+				
+				// coalesce with in-flight or memoized request of other task
+				final Coalescer.Flight flight;
+				if (coalescer != null) {
+					// register follower to pendingPhaser. So waitProcessTask() waits for result of leader in other thread
+					pendingPhaser.register();
+					flight = coalescer.acquire(task, headerList, (r, e) -> {
+						try {
+							if (r != null) task.process(r);
+						} finally {
+							pendingPhaser.arriveAndDeregister();
+						}
+					});
+					if (flight == null) {
+						taskQueue.done(task);
+						continue;
+					}
+					pendingPhaser.arriveAndDeregister();
+				} else {
+					flight = null;
+				}
 
+				boolean success = false;
 	            try {
 					HttpHost target = HttpHost.create(task.uri);
 					
 		            ClassicHttpRequest request = new BasicClassicHttpRequest(task.method, task.uri);
 		            headerList.forEach(o -> request.addHeader(o));
+		            task.headerList.forEach(o -> request.addHeader(o));
+		            if (!request.containsHeader(ContentEncoding.HEADER_ACCEPT_ENCODING)) {
+		            	request.setHeader(ContentEncoding.HEADER_ACCEPT_ENCODING, ContentEncoding.ACCEPT_ENCODING);
+		            }
 		            if (task.entity != null) {
 		            	HttpEntity httpEntity = HttpEntities.create(task.entity, task.contentType);
 		            	request.setEntity(httpEntity);
@@ -197,12 +238,19 @@ public final class DownloadSync implements Download {
 		        		}
 		            };
 
+		            task.sendTime = System.nanoTime();
 		            Result result = requester.execute(target, request, Timeout.ofSeconds(connectionTimeout), coreContext, responseHandler);
+		            success = !CircuitBreaker.isFailure(result.code);
+		            if (flight != null) flight.complete(result);
 		            task.process(result);
 
-				} catch (HttpException | IOException e) {
+				} catch (HttpException | IOException | RuntimeException e) {
+					// RuntimeException like UnsupportedCharsetException must fail flight too. Otherwise follower waits forever
+					if (flight != null) flight.fail(e);
 					String exceptionName = e.getClass().getSimpleName();
 					logger.warn("{} {}", exceptionName, e);
+				} finally {
+					taskQueue.done(task, success);
 				}
 			}
 		}
@@ -9,7 +9,9 @@ import java.nio.charset.Charset;
 import java.util.function.Consumer;
 
 import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpStatus;
 
+import yokwe.util.FileUtil;
 import yokwe.util.UnexpectedException;
 
 public class FileTask {
@@ -24,15 +26,24 @@ public class FileTask {
 		private final File file;
 		private final Mode mode;
 		private final Charset defaultCharset;
+		private final boolean useCache;
 		
-		public MyConsumer(File file, Mode mode, Charset defaultCharset) {
+		public MyConsumer(File file, Mode mode, Charset defaultCharset, boolean useCache) {
 			this.file           = file;
 			this.mode           = mode;
 			this.defaultCharset = defaultCharset;
+			this.useCache       = useCache;
 		}
 		
 		@Override
 		public void accept(Result result) {
+			if (useCache && result.code == HttpStatus.SC_NOT_MODIFIED) {
+				// content is not changed. touch file to reset grace period of UpdateBase.needsUpdate
+				logger.debug("not modified  {}", file.getPath());
+				FileUtil.touch(file);
+				return;
+			}
+			
 			switch (mode) {
 			case BINARY:
 				saveAsBinaryFile(result);
@@ -45,6 +56,10 @@ public class FileTask {
 				logger.error("  mode {}", mode);
 				throw new UnexpectedException("Unexpected mode");
 			}
+			
+			if (useCache) {
+				HttpCache.save(file, result.head);
+			}
 		}
 		
 		private void saveAsBinaryFile(Result result) {
@@ -87,11 +102,18 @@ public class FileTask {
 	}
 	
 	private static Task get(String uriString, File file, Mode mode, Charset defaultCharset) {
-		return Task.get(new MyConsumer(file, mode, defaultCharset), URI.create(uriString));
+		return Task.get(new MyConsumer(file, mode, defaultCharset, false), URI.create(uriString));
 	}
 	
 	private static Task post(String uriString, File file, Mode mode, Charset defaultCharset, String content, String contentTypeString) {
-		return Task.post(new MyConsumer(file, mode, defaultCharset), URI.create(uriString), content, ContentType.parse(contentTypeString));
+		return Task.post(new MyConsumer(file, mode, defaultCharset, false), URI.create(uriString), content, ContentType.parse(contentTypeString));
+	}
+	
+	// conditional get use validator saved in HttpCache
+	private static Task createConditional(String uriString, File file, Mode mode, Charset defaultCharset) {
+		Task task = Task.get(new MyConsumer(file, mode, defaultCharset, true), URI.create(uriString));
+		HttpCache.getConditionalHeaderMap(file).forEach((k, v) -> task.addHeader(k, v));
+		return task;
 	}
 	
 	public static Task getRaw(String uriString, File file) {
@@ -104,6 +126,17 @@ public class FileTask {
 		return get(uriString, file, Mode.TEXT, defaultCharset);
 	}
 	
+	
+	public static Task getRawConditional(String uriString, File file) {
+		return createConditional(uriString, file, Mode.BINARY, null);
+	}
+	public static Task getConditional(String uriString, File file) {
+		return createConditional(uriString, file, Mode.TEXT, null);
+	}
+	public static Task getConditional(String uriString, File file, Charset defaultCharset) {
+		return createConditional(uriString, file, Mode.TEXT, defaultCharset);
+	}
+	
 	public static Task post(String uriString, File file, String content, String contentTypeString) {
 		return post(uriString, file, Mode.TEXT, null, content, contentTypeString);
 	}
@@ -0,0 +1,115 @@
+package yokwe.util.http;
+
+import java.io.File;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpResponse;
+
+import yokwe.util.FileUtil;
+
+//
+// Keep validator of http response (ETag and Last-Modified) in side file of downloaded file.
+// Validator is used to send conditional request (If-None-Match and If-Modified-Since).
+// Server returns 304 Not Modified when content is not changed.
+//
+public class HttpCache {
+	private static final org.slf4j.Logger logger = yokwe.util.LoggerUtil.getLogger();
+
+	public static final String SUFFIX = ".http-cache";
+
+	public static final String ETAG              = "ETag";
+	public static final String LAST_MODIFIED     = "Last-Modified";
+	public static final String CONTENT_TYPE      = "Content-Type";
+	public static final String IF_NONE_MATCH     = "If-None-Match";
+	public static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+
+	public static class Validator {
+		public final String etag;
+		public final String lastModified;
+		public final String contentType;
+
+		private Validator(String etag, String lastModified, String contentType) {
+			this.etag         = etag;
+			this.lastModified = lastModified;
+			this.contentType  = contentType;
+		}
+
+		public boolean isEmpty() {
+			return etag == null && lastModified == null;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("{%s  %s  %s}", etag, lastModified, contentType);
+		}
+	}
+
+	public static File getCacheFile(File file) {
+		return new File(file.getPath() + SUFFIX);
+	}
+
+	// returns null if there is no usable validator
+	public static Validator load(File file) {
+		// validator is meaningful only when file exists
+		if (!file.exists()) return null;
+
+		File cacheFile = getCacheFile(file);
+		if (!cacheFile.canRead()) return null;
+
+		Map<String, String> map = new TreeMap<>();
+		for(var line: FileUtil.read().file(cacheFile).split("\n")) {
+			int pos = line.indexOf(':');
+			if (pos == -1) continue;
+			map.put(line.substring(0, pos).trim(), line.substring(pos + 1).trim());
+		}
+
+		Validator validator = new Validator(map.get(ETAG), map.get(LAST_MODIFIED), map.get(CONTENT_TYPE));
+		return validator.isEmpty() ? null : validator;
+	}
+
+	public static void save(File file, HttpResponse response) {
+		String etag         = getHeaderValue(response, ETAG);
+		String lastModified = getHeaderValue(response, LAST_MODIFIED);
+		String contentType  = getHeaderValue(response, CONTENT_TYPE);
+
+		File cacheFile = getCacheFile(file);
+		if (etag == null && lastModified == null) {
+			// no validator in response. remove stale cache file
+			if (cacheFile.exists()) cacheFile.delete();
+			return;
+		}
+
+		StringBuilder sb = new StringBuilder();
+		if (etag         != null) sb.append(ETAG).append(": ").append(etag).append("\n");
+		if (lastModified != null) sb.append(LAST_MODIFIED).append(": ").append(lastModified).append("\n");
+		if (contentType  != null) sb.append(CONTENT_TYPE).append(": ").append(contentType).append("\n");
+
+		FileUtil.write().file(cacheFile, sb.toString());
+	}
+
+	public static void delete(File file) {
+		File cacheFile = getCacheFile(file);
+		if (cacheFile.exists()) cacheFile.delete();
+	}
+
+	// returns header of conditional request for file
+	public static Map<String, String> getConditionalHeaderMap(File file) {
+		Map<String, String> ret = new TreeMap<>();
+
+		Validator validator = load(file);
+		if (validator != null) {
+			if (validator.etag         != null) ret.put(IF_NONE_MATCH,     validator.etag);
+			if (validator.lastModified != null) ret.put(IF_MODIFIED_SINCE, validator.lastModified);
+			logger.debug("conditional request  {}  {}", file.getPath(), validator);
+		}
+
+		return ret;
+	}
+
+	private static String getHeaderValue(HttpResponse response, String name) {
+		Header header = response.getFirstHeader(name);
+		return header == null ? null : header.getValue();
+	}
+}
@@ -1,5 +1,6 @@
 package yokwe.util.http;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.SocketTimeoutException;
@@ -12,9 +13,6 @@ import java.time.format.DateTimeFormatter;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.TreeMap;
-import java.util.concurrent.TimeUnit;
-import java.util.zip.DeflaterInputStream;
-import java.util.zip.GZIPInputStream;
 
 import org.apache.hc.core5.http.ClassicHttpRequest;
 import org.apache.hc.core5.http.ClassicHttpResponse;
@@ -29,12 +27,9 @@ import org.apache.hc.core5.http.Method;
 import org.apache.hc.core5.http.NoHttpResponseException;
 import org.apache.hc.core5.http.ProtocolVersion;
 import org.apache.hc.core5.http.impl.bootstrap.HttpRequester;
-import org.apache.hc.core5.http.impl.bootstrap.RequesterBootstrap;
-import org.apache.hc.core5.http.io.SocketConfig;
 import org.apache.hc.core5.http.io.entity.HttpEntities;
 import org.apache.hc.core5.http.message.BasicClassicHttpRequest;
 import org.apache.hc.core5.http.protocol.HttpCoreContext;
-import org.apache.hc.core5.io.CloseMode;
 import org.apache.hc.core5.util.Timeout;
 
 import yokwe.util.FileUtil;
@@ -45,28 +40,13 @@ public class HttpUtil {
 	
 	private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
 
-	private static final HttpRequester requester;
-	static {
-		SocketConfig socketConfig = SocketConfig.custom()
-                .setSoTimeout(30, TimeUnit.SECONDS)
-                .build();
-		
-		requester = RequesterBootstrap.bootstrap()
-                .setSocketConfig(socketConfig)
-                .setMaxTotal(100)
-                .setDefaultMaxPerRoute(50)
-                .create();
-		
-        Runtime.getRuntime().addShutdownHook(new Thread() {
-            @Override
-            public void run() {
-            	logger.info("{}", "HTTP requester shutting down");
-                requester.close(CloseMode.GRACEFUL);
-           }
-        });
-	}
+	// default requester builder shared by all instance created by getInstance()
+	private static final RequesterBuilder DEFAULT_REQUESTER_BUILDER = RequesterBuilder.custom()
+			.setMaxTotal(100)
+			.setDefaultMaxPerRoute(50);
 	
-    private static final HttpCoreContext httpContext = HttpCoreContext.create();
+	// HttpCoreContext is not thread safe. Use one context per thread.
+    private static final ThreadLocal<HttpCoreContext> httpContext = ThreadLocal.withInitial(HttpCoreContext::create);
 
 	
 	private static final boolean DEFAULT_TRACE      = false;
@@ -88,6 +68,9 @@ public class HttpUtil {
 		String postBody;
 		String postContentType;
 		
+		// For conditional request
+		File cacheFile;
+		
 		private Context() {
 			trace      = DEFAULT_TRACE;
 			traceDir   = DEFAULT_TRACE_DIR;
@@ -99,8 +82,25 @@ public class HttpUtil {
 			postBody        = null;
 			postContentType = null;
 			
+			cacheFile       = null;
+			
 			if (DEFAULT_USER_AGENT != null) headerMap.put("User-Agent", DEFAULT_USER_AGENT);
 			if (DEFAULT_CONNECTION != null) headerMap.put("Connection", DEFAULT_CONNECTION);
+			headerMap.put(ContentEncoding.HEADER_ACCEPT_ENCODING, ContentEncoding.ACCEPT_ENCODING);
+		}
+		// snapshot of context for request that completes after context is changed
+		Context(Context that) {
+			trace      = that.trace;
+			traceDir   = that.traceDir;
+			charset    = that.charset;
+			rawData    = that.rawData;
+			
+			headerMap  = new TreeMap<>(that.headerMap);
+			
+			postBody        = that.postBody;
+			postContentType = that.postContentType;
+			
+			cacheFile       = that.cacheFile;
 		}
 	}
 	
@@ -110,6 +110,10 @@ public class HttpUtil {
 		public final byte[]              rawData;
 		public final Map<String, String> headerMap;
 		public final String              timestamp;
+		// id of trace in index of traceDir. null if trace is disabled or dropped. see TraceWriter
+		public final String              traceId;
+		// body is not written to file anymore. always null. use traceId
+		@Deprecated
 		public final String              path;
 		
 		public final HttpResponse        response;
@@ -127,16 +131,12 @@ public class HttpUtil {
 			this.timestamp = LocalDateTime.now(ZoneId.systemDefault()).format(DATE_TIME_FORMATTER);
 			
 			if (context.trace) {
-				this.path = String.format("%s/%s", context.traceDir, timestamp);
-				
-				if (result != null) {
-					FileUtil.write().file(this.path, result);
-				} else {
-					FileUtil.rawWrite().file(this.path, rawData);
-				}
+				// trace is written by background thread. see TraceWriter
+				this.traceId = TraceWriter.getInstance(context.traceDir).write(url, response, rawData);
 			} else {
-				this.path = null;
+				this.traceId = null;
 			}
+			this.path = null;
 			
 			this.response     = response;
 			this.code         = response.getCode();
@@ -151,12 +151,26 @@ public class HttpUtil {
 	}
 	
 	public static HttpUtil getInstance() {
-		return new HttpUtil();
+		return new HttpUtil(DEFAULT_REQUESTER_BUILDER);
+	}
+	public static HttpUtil getInstance(RequesterBuilder requesterBuilder) {
+		return new HttpUtil(requesterBuilder);
+	}
+	
+	private final Context          context;
+	private final RequesterBuilder requesterBuilder;
+	private final HttpRequester    requester;
+	private final Timeout          connectTimeout;
+	private HttpUtil(RequesterBuilder requesterBuilder) {
+		this.context          = new Context();
+		this.requesterBuilder = requesterBuilder;
+		this.requester        = requesterBuilder.getHttpRequester();
+		this.connectTimeout   = Timeout.ofSeconds(requesterBuilder.connectTimeout);
 	}
 	
-	private final Context context;
-	private HttpUtil() {
-		this.context = new Context();
+	// returns non-blocking facade that shares setting of this instance
+	public HttpUtilAsync async() {
+		return new HttpUtilAsync(context, requesterBuilder);
 	}
 	
 	public HttpUtil withTrace(boolean newValue) {
@@ -211,6 +225,12 @@ public class HttpUtil {
 		context.postContentType = contentType;
 		return this;
 	}
+	// Send conditional request using validator of cacheFile.
+	// Content of response is saved to cacheFile. If response is 304 Not Modified, content is read from cacheFile.
+	public HttpUtil withCacheFile(File cacheFile) {
+		context.cacheFile = cacheFile;
+		return this;
+	}
 	
 	private static class MyResponse {
 		HttpResponse response;
@@ -244,18 +264,8 @@ public class HttpUtil {
 				InputStream is = null;
 
 				try {
-					String contentEncoding = entity.getContentEncoding();
-					if (contentEncoding == null) {
-						is = entity.getContent();
-					} else if (contentEncoding.equalsIgnoreCase("gzip")){
-						is = new GZIPInputStream(entity.getContent());
-					} else if (contentEncoding.equalsIgnoreCase("defalte")){
-						is = new DeflaterInputStream(entity.getContent());
-					} else {
-						logger.error("Unexpected contentEncoding");
-						logger.error("  entity {}", entity);
-						throw new UnexpectedException("Unexpected contentEncoding");
-					}
+					// uncompress content while reading
+					is = ContentEncoding.decode(entity.getContentEncoding(), entity.getContent());
 					
 					content = is.readAllBytes();
 					is.close();
@@ -298,11 +308,21 @@ public class HttpUtil {
 			HttpEntity entity = HttpEntities.create(postBody, contentType);
 			request.setEntity(entity);
 		}
+		
+		File cacheFile = context.cacheFile;
+		context.cacheFile = null;
+		HttpCache.Validator validator = null;
+		if (cacheFile != null && postBody == null) {
+			validator = HttpCache.load(cacheFile);
+			if (validator != null) {
+				HttpCache.getConditionalHeaderMap(cacheFile).forEach((k, v) -> request.setHeader(k, v));
+			}
+		}
 
 		int retryCount = 0;
 		for(;;) {
 			try {
-				MyResponse   myResponse   = requester.execute(target, request, Timeout.ofSeconds(5), httpContext, o -> new MyResponse(o));
+				MyResponse   myResponse   = requester.execute(target, request, connectTimeout, httpContext.get(), o -> new MyResponse(o));
 				HttpResponse response     = myResponse.response;
 		        int          code         = response.getCode();
 		        String       reasonPhrase = response.getReasonPhrase();
@@ -357,8 +377,24 @@ public class HttpUtil {
 					logger.warn("{} {}  {}", code, reasonPhrase, url);
 					return null;
 				}
-		        if (code == HttpStatus.SC_OK) {
-	    			byte[] rawData = myResponse.content;
+				final boolean notModified = code == HttpStatus.SC_NOT_MODIFIED && validator != null;
+		        if (code == HttpStatus.SC_OK || notModified) {
+	    			final byte[]  rawData;
+	    			final Charset responseCharset;
+	    			if (notModified) {
+	    				// content is not changed. use content of cacheFile
+	    				logger.debug("{} {}  {}", code, reasonPhrase, url);
+	    				rawData         = FileUtil.rawRead().file(cacheFile);
+	    				responseCharset = validator.contentType == null ? null : ContentType.parse(validator.contentType).getCharset();
+	    				FileUtil.touch(cacheFile);
+	    			} else {
+	    				rawData         = myResponse.content;
+	    				responseCharset = myResponse.charset;
+	    				if (cacheFile != null && rawData != null && postBody == null) {
+	    					FileUtil.rawWrite().file(cacheFile, rawData);
+	    					HttpCache.save(cacheFile, response);
+	    				}
+	    			}
 					
 	    			final String result;
 					if (context.rawData) {
@@ -367,14 +403,14 @@ public class HttpUtil {
 						if (rawData == null) {
 							result = null;
 						} else {
-							Charset charset = myResponse.charset == null ? context.charset : myResponse.charset;
+							Charset charset = responseCharset == null ? context.charset : responseCharset;
 							result = new String(rawData, charset);
 						}
 					}
 
 	    			Result ret = new Result(context, url, result, rawData, response);
 					
-					if (ret.path != null) {
+					if (ret.traceId != null) {
 						logger.info(String.format("%s %7d %s", ret.timestamp, ret.rawData.length, ret.url));
 					}
 					return ret;
@@ -0,0 +1,267 @@
+package yokwe.util.http;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.Message;
+import org.apache.hc.core5.http.Method;
+import org.apache.hc.core5.http.impl.bootstrap.HttpAsyncRequester;
+import org.apache.hc.core5.http.message.BasicHttpRequest;
+import org.apache.hc.core5.http.nio.AsyncEntityProducer;
+import org.apache.hc.core5.http.nio.entity.AsyncEntityProducers;
+import org.apache.hc.core5.http.nio.entity.BasicAsyncEntityConsumer;
+import org.apache.hc.core5.http.nio.support.BasicRequestProducer;
+import org.apache.hc.core5.http.nio.support.BasicResponseConsumer;
+import org.apache.hc.core5.http.protocol.HttpCoreContext;
+import org.apache.hc.core5.util.Timeout;
+
+import yokwe.util.UnexpectedException;
+
+//
+// Non-blocking version of HttpUtil. Created by HttpUtil.async()
+//   Setting of HttpUtil (header, charset, trace and post) is taken when download is called.
+//   Each download returns CompletableFuture and doesn't occupy thread while waiting response.
+//   Request is retried for 429, 403 and 503 and for IOException and timeout. Retry count is 10 like HttpUtil.
+//   Cancel of returned future cancels request in flight and stops retry.
+//
+// Outcome is same as HttpUtil
+//   200                  complete with Result
+//   404 400 302 500 401  complete with null
+//   other code           complete exceptionally with UnexpectedException
+//   429 403 503          complete exceptionally with UnexpectedException after retry is exhausted
+//
+public final class HttpUtilAsync {
+	private static final org.slf4j.Logger logger = yokwe.util.LoggerUtil.getLogger();
+	
+	private static final int      DEFAULT_RETRY_COUNT = 10;
+	private static final Duration DEFAULT_RETRY_DELAY = Duration.ofSeconds(1);
+	
+	private final HttpUtil.Context   context;
+	private final HttpAsyncRequester requester;
+	private final Timeout            connectTimeout;
+	
+	private Duration timeout;    // timeout of each attempt. zero means no timeout
+	private int      retryCount = DEFAULT_RETRY_COUNT;
+	private Duration retryDelay = DEFAULT_RETRY_DELAY;
+	
+	HttpUtilAsync(HttpUtil.Context context, RequesterBuilder requesterBuilder) {
+		this.context        = context;
+		this.requester      = requesterBuilder.getHttpAsyncRequester();
+		this.connectTimeout = Timeout.ofSeconds(requesterBuilder.connectTimeout);
+		this.timeout        = Duration.ofSeconds(requesterBuilder.soTimeout);
+	}
+	
+	public HttpUtilAsync withTimeout(Duration newValue) {
+		timeout = newValue;
+		return this;
+	}
+	public HttpUtilAsync withRetryCount(int newValue) {
+		retryCount = newValue;
+		return this;
+	}
+	// delay before n-th retry is retryDelay * n * n
+	public HttpUtilAsync withRetryDelay(Duration newValue) {
+		retryDelay = newValue;
+		return this;
+	}
+	
+	public CompletableFuture<HttpUtil.Result> download(String url) {
+		// take snapshot of context. context can be changed after this method returns
+		Call call = new Call(url);
+		call.execute();
+		return call.future;
+	}
+	public CompletableFuture<String> downloadString(String url) {
+		return download(url).thenApply(result -> {
+			if (result == null || result.result == null) {
+				logger.error("Unexpected");
+				logger.error("  url     {}", url);
+				logger.error("  result  {}", result);
+				throw new UnexpectedException("Unexpected");
+			}
+			return result.result;
+		});
+	}
+	public CompletableFuture<byte[]> downloadRaw(String url) {
+		return download(url).thenApply(result -> {
+			if (result == null || result.rawData == null) {
+				logger.error("Unexpected");
+				logger.error("  url     {}", url);
+				logger.error("  result  {}", result);
+				throw new UnexpectedException("Unexpected");
+			}
+			return result.rawData;
+		});
+	}
+	
+	private final class Call {
+		final CompletableFuture<HttpUtil.Result> future = new CompletableFuture<>();
+		
+		final HttpUtil.Context    snapshot;
+		final String              url;
+		final URI                 uri;
+		final Map<String, String> headerMap;
+		final String              postBody;
+		final String              postContentType;
+		final Charset             charset;
+		final boolean             rawData;
+		final int                 maxRetry;
+		final Duration            attemptTimeout;
+		final Duration            delay;
+		
+		int                 retry   = 0;
+		volatile Future<?>  current = null;
+		
+		Call(String url) {
+			this.snapshot        = new HttpUtil.Context(context);
+			this.url             = url;
+			this.uri             = URI.create(url);
+			this.headerMap       = snapshot.headerMap;
+			this.postBody        = snapshot.postBody;
+			this.postContentType = snapshot.postContentType;
+			this.charset         = snapshot.charset;
+			this.rawData         = snapshot.rawData;
+			this.maxRetry        = retryCount;
+			this.attemptTimeout  = timeout;
+			this.delay           = retryDelay;
+			// post body is used only once like HttpUtil
+			context.postBody        = null;
+			context.postContentType = null;
+			
+			// propagate cancel of future to request in flight
+			future.whenComplete((result, e) -> {
+				if (future.isCancelled()) {
+					Future<?> request = current;
+					if (request != null) request.cancel(true);
+				}
+			});
+		}
+		
+		void execute() {
+			if (future.isDone()) return;
+			
+			HttpRequest request = new BasicHttpRequest(postBody != null ? Method.POST : Method.GET, uri);
+			headerMap.forEach((k, v) -> request.setHeader(k, v));
+			AsyncEntityProducer entityProducer = postBody == null ? null : AsyncEntityProducers.create(postBody, ContentType.parse(postContentType));
+			
+			Future<Message<HttpResponse, byte[]>> inFlight = requester.execute(
+				new BasicRequestProducer(request, entityProducer),
+				new BasicResponseConsumer<>(new BasicAsyncEntityConsumer()),
+				connectTimeout,
+				HttpCoreContext.create(),
+				new FutureCallback<Message<HttpResponse, byte[]>>() {
+					@Override
+					public void completed(Message<HttpResponse, byte[]> message) {
+						try {
+							handle(message);
+						} catch (RuntimeException | IOException e) {
+							future.completeExceptionally(e);
+						}
+					}
+					@Override
+					public void failed(Exception e) {
+						retryOrFail(e);
+					}
+					@Override
+					public void cancelled() {
+						// cancelled by caller or by timeout of attempt
+						if (!future.isDone()) retryOrFail(new TimeoutException("timeout " + url));
+					}
+				});
+			current = inFlight;
+			
+			if (!attemptTimeout.isZero()) {
+				CompletableFuture.delayedExecutor(attemptTimeout.toMillis(), TimeUnit.MILLISECONDS).execute(() -> inFlight.cancel(true));
+			}
+		}
+		
+		void retryOrFail(Exception e) {
+			if (future.isDone()) return;
+			
+			boolean retryable = e instanceof IOException || e instanceof TimeoutException;
+			if (retryable && retry < maxRetry) {
+				retry++;
+				String exceptionName = e.getClass().getSimpleName();
+				logger.warn("retry {} {}  {}", retry, exceptionName, url);
+				schedule();
+			} else {
+				future.completeExceptionally(e);
+			}
+		}
+		void retryOrFail(int code, String reasonPhrase) {
+			if (retry < maxRetry) {
+				retry++;
+				logger.warn("retry {} {} {}  {}", retry, code, reasonPhrase, url);
+				schedule();
+			} else {
+				// same as HttpUtil
+				logger.error("statusLine = {} {}", code, reasonPhrase);
+				logger.error("url {}", url);
+				logger.error("code {}", code);
+				future.completeExceptionally(new UnexpectedException("download"));
+			}
+		}
+		void schedule() {
+			long millis = delay.toMillis() * retry * retry;
+			CompletableFuture.delayedExecutor(millis, TimeUnit.MILLISECONDS).execute(this::execute);
+		}
+		
+		void handle(Message<HttpResponse, byte[]> message) throws IOException {
+			HttpResponse response     = message.getHead();
+			int          code         = response.getCode();
+			String       reasonPhrase = response.getReasonPhrase();
+			
+			switch(code) {
+			case HttpStatus.SC_TOO_MANY_REQUESTS:   // 429
+			case HttpStatus.SC_FORBIDDEN:           // 403
+			case HttpStatus.SC_SERVICE_UNAVAILABLE: // 503
+				retryOrFail(code, reasonPhrase);
+				return;
+			case HttpStatus.SC_NOT_FOUND:           // 404
+			case HttpStatus.SC_BAD_REQUEST:         // 400
+			case HttpStatus.SC_MOVED_TEMPORARILY:   // 302
+			case HttpStatus.SC_SERVER_ERROR:        // 500
+			case HttpStatus.SC_UNAUTHORIZED:        // 401
+				logger.warn("{} {}  {}", code, reasonPhrase, url);
+				future.complete(null);
+				return;
+			case HttpStatus.SC_OK:
+				break;
+			default:
+				logger.error("statusLine = {} {} {}", code, reasonPhrase, response.getVersion());
+				logger.error("url {}", url);
+				logger.error("code {}", code);
+				future.completeExceptionally(new UnexpectedException("download"));
+				return;
+			}
+			
+			Header contentEncoding = response.getFirstHeader(ContentEncoding.HEADER_CONTENT_ENCODING);
+			byte[] body = ContentEncoding.decode(contentEncoding == null ? null : contentEncoding.getValue(), message.getBody());
+			
+			final String result;
+			if (rawData || body == null) {
+				result = null;
+			} else {
+				Header      contentTypeHeader = response.getFirstHeader("Content-Type");
+				ContentType contentType       = contentTypeHeader == null ? null : ContentType.parse(contentTypeHeader.getValue());
+				Charset     responseCharset   = contentType == null ? null : contentType.getCharset();
+				result = new String(body, responseCharset == null ? charset : responseCharset);
+			}
+			
+			future.complete(new HttpUtil.Result(snapshot, url, result, body == null ? new byte[0] : body, response));
+		}
+	}
+}
@@ -1,33 +1,416 @@
 package yokwe.util.http;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSessionContext;
+
+import org.apache.hc.core5.function.Resolver;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.Method;
+import org.apache.hc.core5.http.config.CharCodingConfig;
+import org.apache.hc.core5.http.config.Http1Config;
+import org.apache.hc.core5.http.impl.DefaultAddressResolver;
+import org.apache.hc.core5.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.hc.core5.http.impl.HttpProcessors;
+import org.apache.hc.core5.http.impl.bootstrap.HttpAsyncRequester;
+import org.apache.hc.core5.http.impl.bootstrap.HttpRequester;
+import org.apache.hc.core5.http.impl.io.DefaultBHttpClientConnectionFactory;
+import org.apache.hc.core5.http.impl.io.HttpRequestExecutor;
+import org.apache.hc.core5.http.io.HttpClientConnection;
+import org.apache.hc.core5.http.io.SocketConfig;
+import org.apache.hc.core5.http.io.ssl.DefaultTlsSetupHandler;
+import org.apache.hc.core5.http.message.BasicClassicHttpRequest;
+import org.apache.hc.core5.http.nio.AsyncClientEndpoint;
+import org.apache.hc.core5.http.nio.ssl.TlsStrategy;
+import org.apache.hc.core5.http.protocol.HttpCoreContext;
 import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.http2.config.H2Config;
+import org.apache.hc.core5.http2.impl.nio.bootstrap.H2RequesterBootstrap;
+import org.apache.hc.core5.http2.ssl.H2ClientTlsStrategy;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.net.NamedEndpoint;
+import org.apache.hc.core5.pool.DefaultDisposalCallback;
+import org.apache.hc.core5.pool.ManagedConnPool;
+import org.apache.hc.core5.pool.PoolReusePolicy;
+import org.apache.hc.core5.pool.StrictConnPool;
+import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.hc.core5.reactor.ssl.SSLSessionVerifier;
+import org.apache.hc.core5.reactor.ssl.TlsDetails;
+import org.apache.hc.core5.ssl.SSLContexts;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+
+import yokwe.util.UnexpectedException;
 
 // To hide difference, provide ReuestBuilder
-public class RequesterBuilder {
+//   Requester, connection pool and evictor are created at first use and shared by all users of this builder.
+//   Setting can not be changed after that. close() releases them.
+public class RequesterBuilder implements Closeable {
+	private static final org.slf4j.Logger logger = yokwe.util.LoggerUtil.getLogger();
+
 	int maxTotal                    = 50;
 	int defaultMaxPerRoute          = 20;
 	int soTimeout                   = 30; // 30 seconds
 	HttpVersionPolicy versionPolicy = HttpVersionPolicy.NEGOTIATE;
+
+	int connectTimeout              =  5; // 5 seconds
+	int timeToLive                  =  0; // in seconds. 0 means infinite
+	int idleTimeout                 = 60; // in seconds. 0 means never close idle connection
+	int sessionCacheSize            =  0; // 0 means default of jdk
+	int sessionTimeout              =  0; // in seconds. 0 means default of jdk
 	
+	int validateAfterInactivity     =  2; // in seconds. check stale connection idle longer than this. 0 means always check
+	int dnsCacheTTL                 =  0; // in seconds. 0 means no cache and use resolver of jdk
+	int warmUpConnection            =  0; // number of connection opened for each host before run. 0 means no warm up
+
     private RequesterBuilder() {
     }
     public static RequesterBuilder custom() {
     	return new RequesterBuilder();
     }
+    
+    //
+    // builder with default setting shared in jvm. setting of default builder can not be changed and close() is ignored
+    //
+    private static final RequesterBuilder DEFAULT = new RequesterBuilder().freeze();
+    public static RequesterBuilder getDefault() {
+    	return DEFAULT;
+    }
+    
+    private boolean shared = false;
+    private boolean closed = false;
+    private RequesterBuilder freeze() {
+    	shared = true;
+    	return this;
+    }
+    // setting is used when requester is created. changing setting after that has no effect
+    private synchronized void checkModifiable() {
+    	if (shared || closed || sslContext != null || httpRequester != null || httpAsyncRequester != null) {
+    		logger.error("setting can not be changed after requester is created");
+    		throw new UnexpectedException("setting can not be changed after requester is created");
+    	}
+    }
 	public RequesterBuilder setVersionPolicy(HttpVersionPolicy newValue) {
+		checkModifiable();
 		this.versionPolicy = newValue;
 		return this;
 	}
 	public RequesterBuilder setMaxTotal(int newValue) {
+		checkModifiable();
 		this.maxTotal = newValue;
 		return this;
 	}
 	public RequesterBuilder setDefaultMaxPerRoute(int newValue) {
+		checkModifiable();
 		this.defaultMaxPerRoute = newValue;
 		return this;
 	}
 	public RequesterBuilder setSoTimeout(int newValue) {
+		checkModifiable();
 		this.soTimeout = newValue;
 		return this;
 	}
-}
\ No newline at end of file
+	public RequesterBuilder setConnectTimeout(int newValue) {
+		checkModifiable();
+		this.connectTimeout = newValue;
+		return this;
+	}
+	public RequesterBuilder setTimeToLive(int newValue) {
+		checkModifiable();
+		this.timeToLive = newValue;
+		return this;
+	}
+	public RequesterBuilder setIdleTimeout(int newValue) {
+		checkModifiable();
+		this.idleTimeout = newValue;
+		return this;
+	}
+	public RequesterBuilder setSessionCacheSize(int newValue) {
+		checkModifiable();
+		this.sessionCacheSize = newValue;
+		return this;
+	}
+	public RequesterBuilder setSessionTimeout(int newValue) {
+		checkModifiable();
+		this.sessionTimeout = newValue;
+		return this;
+	}
+	public RequesterBuilder setValidateAfterInactivity(int newValue) {
+		checkModifiable();
+		this.validateAfterInactivity = newValue;
+		return this;
+	}
+	public RequesterBuilder setDnsCacheTTL(int newValue) {
+		checkModifiable();
+		this.dnsCacheTTL = newValue;
+		return this;
+	}
+	public RequesterBuilder setWarmUpConnection(int newValue) {
+		checkModifiable();
+		this.warmUpConnection = newValue;
+		return this;
+	}
+
+
+	//
+	// SSLContext is shared among connections created from this builder to reuse TLS session
+	//
+	private SSLContext sslContext = null;
+	synchronized SSLContext getSSLContext() {
+		checkNotClosed();
+		if (sslContext == null) {
+			sslContext = SSLContexts.createSystemDefault();
+			SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+			if (sessionCacheSize != 0) sessionContext.setSessionCacheSize(sessionCacheSize);
+			if (sessionTimeout   != 0) sessionContext.setSessionTimeout(sessionTimeout);
+		}
+		return sslContext;
+	}
+
+
+	//
+	// HttpRequester is created once and shared by all users of this builder
+	//
+	private HttpRequester      httpRequester      = null;
+	private Thread             shutdownHook       = null;
+	private ScheduledFuture<?> evictorFuture      = null;
+	synchronized HttpRequester getHttpRequester() {
+		checkNotClosed();
+		if (httpRequester == null) {
+			httpRequester = createHttpRequester();
+		}
+		return httpRequester;
+	}
+	private HttpRequester createHttpRequester() {
+		SocketConfig socketConfig = SocketConfig.custom()
+                .setSoTimeout(soTimeout, TimeUnit.SECONDS)
+                .build();
+		
+		// same as RequesterBootstrap.create() except connection pool and resolver
+		ManagedConnPool<HttpHost, HttpClientConnection> connPool = new ValidatingConnPool(
+				new StrictConnPool<>(defaultMaxPerRoute, maxTotal, timeToLive == 0 ? null : Timeout.ofSeconds(timeToLive), PoolReusePolicy.LIFO, new DefaultDisposalCallback<>(), null),
+				validateAfterInactivity);
+		Resolver<HttpHost, InetSocketAddress> resolver = dnsCacheTTL == 0 ? DefaultAddressResolver.INSTANCE : new DnsCache(dnsCacheTTL);
+		
+		HttpRequester requester = new HttpRequester(
+				new HttpRequestExecutor(HttpRequestExecutor.DEFAULT_WAIT_FOR_CONTINUE, DefaultConnectionReuseStrategy.INSTANCE, null),
+				HttpProcessors.client(),
+				connPool,
+				socketConfig,
+				new DefaultBHttpClientConnectionFactory(Http1Config.DEFAULT, CharCodingConfig.DEFAULT),
+				getSSLContext().getSocketFactory(),
+				new DefaultTlsSetupHandler(),
+				null,
+				resolver);
+
+        shutdownHook = new Thread() {
+            @Override
+            public void run() {
+            	logger.info("{}", "HTTP requester shutting down");
+                requester.close(CloseMode.GRACEFUL);
+           }
+        };
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+        if (idleTimeout != 0) {
+        	// evict idle and expired connection periodically
+        	final TimeValue idleTime = TimeValue.ofSeconds(idleTimeout);
+        	final long      interval = Math.max(1, idleTimeout / 2);
+        	evictorFuture = evictor.scheduleWithFixedDelay(() -> {
+        		requester.closeExpired();
+        		requester.closeIdle(idleTime);
+        	}, interval, interval, TimeUnit.SECONDS);
+        }
+
+        return requester;
+	}
+
+	//
+	// HttpAsyncRequester is created once and shared by all users of this builder
+	//
+	private HttpAsyncRequester httpAsyncRequester = null;
+	private Thread             asyncShutdownHook  = null;
+	private ScheduledFuture<?> asyncEvictorFuture = null;
+	synchronized HttpAsyncRequester getHttpAsyncRequester() {
+		checkNotClosed();
+		if (httpAsyncRequester == null) {
+			httpAsyncRequester = createHttpAsyncRequester();
+		}
+		return httpAsyncRequester;
+	}
+	private HttpAsyncRequester createHttpAsyncRequester() {
+        H2Config h2Config = H2Config.custom()
+                .setPushEnabled(false)
+                .build();
+        
+        IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+        		.setSoTimeout(soTimeout, TimeUnit.SECONDS)
+        		.build();
+        
+        TlsStrategy tlsStrategy = new H2ClientTlsStrategy(getSSLContext(), new SSLSessionVerifier() {
+            @Override
+            public TlsDetails verify(final NamedEndpoint endpoint, final SSLEngine sslEngine) throws SSLException {
+                // IMPORTANT uncomment the following line when running Java 9 or older
+                // in order to avoid the illegal reflective access operation warning
+            	return new TlsDetails(sslEngine.getSession(), sslEngine.getApplicationProtocol());
+            }
+        });
+        
+		H2RequesterBootstrap bootstrap = H2RequesterBootstrap.bootstrap()
+				.setH2Config(h2Config)
+                .setIOReactorConfig(ioReactorConfig)
+                .setMaxTotal(maxTotal)
+                .setDefaultMaxPerRoute(defaultMaxPerRoute)
+                .setVersionPolicy(versionPolicy)
+                .setTlsStrategy(tlsStrategy);
+		if (timeToLive != 0) bootstrap.setTimeToLive(Timeout.ofSeconds(timeToLive));
+		
+		HttpAsyncRequester requester = bootstrap.create();
+		
+        asyncShutdownHook = new Thread() {
+            @Override
+            public void run() {
+            	logger.info("{}", "HTTP async requester shutting down");
+                requester.close(CloseMode.GRACEFUL);
+           }
+        };
+        Runtime.getRuntime().addShutdownHook(asyncShutdownHook);
+        
+        requester.start(); // Need to start
+        
+        if (idleTimeout != 0) {
+        	// evict idle and expired connection periodically
+        	final TimeValue idleTime = TimeValue.ofSeconds(idleTimeout);
+        	final long      interval = Math.max(1, idleTimeout / 2);
+        	asyncEvictorFuture = evictor.scheduleWithFixedDelay(() -> {
+        		requester.closeExpired();
+        		requester.closeIdle(idleTime);
+        	}, interval, interval, TimeUnit.SECONDS);
+        }
+        
+        return requester;
+	}
+
+	//
+	// warm up open warmUpConnection connections for each host in advance
+	//   host is string like "https://www.example.com"
+	//
+	void warmUp(Collection<String> hostList) {
+		if (warmUpConnection == 0 || hostList.isEmpty()) return;
+		
+		HttpRequester   requester = getHttpRequester();
+		Timeout         timeout   = Timeout.ofSeconds(connectTimeout);
+		ExecutorService executor  = Executors.newFixedThreadPool(Math.min(MAX_WARM_UP_THREAD, hostList.size() * warmUpConnection));
+		long            startTime = System.currentTimeMillis();
+		for(var host: hostList) {
+			HttpHost target = HttpHost.create(URI.create(host));
+			for(int i = 0; i < warmUpConnection; i++) {
+				// classic requester has no api to open connection. send light weight request
+				executor.execute(() -> {
+					try {
+						requester.execute(target, new BasicClassicHttpRequest(Method.HEAD, "/"), timeout, HttpCoreContext.create(), response -> null);
+					} catch (HttpException | IOException e) {
+						String exceptionName = e.getClass().getSimpleName();
+						logger.warn("warm up failed  {}  {} {}", host, exceptionName, e.getMessage());
+					}
+				});
+			}
+		}
+		awaitWarmUp(executor);
+		logger.info("warm up  {} hosts  {} connections  {} ms", hostList.size(), warmUpConnection, System.currentTimeMillis() - startTime);
+	}
+	void warmUpAsync(Collection<String> hostList) {
+		if (warmUpConnection == 0 || hostList.isEmpty()) return;
+		
+		HttpAsyncRequester                requester  = getHttpAsyncRequester();
+		Timeout                           timeout    = Timeout.ofSeconds(connectTimeout);
+		List<Future<AsyncClientEndpoint>> futureList = new ArrayList<>();
+		long                              startTime  = System.currentTimeMillis();
+		for(var host: hostList) {
+			HttpHost target = HttpHost.create(URI.create(host));
+			// connect before release. so each connect opens new connection
+			for(int i = 0; i < warmUpConnection; i++) {
+				futureList.add(requester.connect(target, timeout));
+			}
+		}
+		for(var future: futureList) {
+			try {
+				future.get().releaseAndReuse();
+			} catch (InterruptedException | ExecutionException e) {
+				String exceptionName = e.getClass().getSimpleName();
+				logger.warn("warm up failed  {} {}", exceptionName, e.getMessage());
+			}
+		}
+		logger.info("warm up  {} hosts  {} connections  {} ms", hostList.size(), warmUpConnection, System.currentTimeMillis() - startTime);
+	}
+	private static final int MAX_WARM_UP_THREAD = 64;
+	private static void awaitWarmUp(ExecutorService executor) {
+		try {
+			executor.shutdown();
+			executor.awaitTermination(1, TimeUnit.HOURS);
+		} catch (InterruptedException e) {
+			String exceptionName = e.getClass().getSimpleName();
+			logger.warn("{} {}", exceptionName, e);
+		}
+	}
+	
+	//
+	// close
+	//
+	private void checkNotClosed() {
+		if (closed) {
+			logger.error("requester builder is closed");
+			throw new UnexpectedException("requester builder is closed");
+		}
+	}
+	@Override
+	public synchronized void close() {
+		if (shared || closed) return;
+		closed = true;
+		
+		if (evictorFuture      != null) evictorFuture.cancel(false);
+		if (asyncEvictorFuture != null) asyncEvictorFuture.cancel(false);
+		if (httpRequester      != null) httpRequester.close(CloseMode.GRACEFUL);
+		if (httpAsyncRequester != null) httpAsyncRequester.close(CloseMode.GRACEFUL);
+		removeShutdownHook(shutdownHook);
+		removeShutdownHook(asyncShutdownHook);
+		
+		httpRequester      = null;
+		httpAsyncRequester = null;
+		shutdownHook       = null;
+		asyncShutdownHook  = null;
+		evictorFuture      = null;
+		asyncEvictorFuture = null;
+	}
+	private static void removeShutdownHook(Thread hook) {
+		if (hook == null) return;
+		try {
+			Runtime.getRuntime().removeShutdownHook(hook);
+		} catch (IllegalStateException e) {
+			// jvm is shutting down. hook closes requester
+		}
+	}
+	
+	private static final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "HTTP-EVICTOR");
+		thread.setDaemon(true);
+		return thread;
+	});
+}
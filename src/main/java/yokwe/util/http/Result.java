@@ -3,18 +3,21 @@ package yokwe.util.http;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.TreeMap;
-import java.util.zip.DeflaterInputStream;
-import java.util.zip.GZIPInputStream;
 
 import org.apache.hc.core5.http.ClassicHttpResponse;
 import org.apache.hc.core5.http.ContentType;
 import org.apache.hc.core5.http.Header;
 import org.apache.hc.core5.http.HttpEntity;
 import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.HttpStatus;
 import org.apache.hc.core5.http.Message;
 import org.apache.hc.core5.http.ProtocolVersion;
 import org.apache.hc.core5.http.io.entity.EntityUtils;
@@ -49,24 +52,10 @@ public class Result {
 			byte[] byteArray = message.getBody();
 			
 			try {
-				Header contentEncodingHeader = message.getHead().getFirstHeader("Content-Encoding");
+				Header contentEncodingHeader = message.getHead().getFirstHeader(ContentEncoding.HEADER_CONTENT_ENCODING);
 				if (contentEncodingHeader != null) {
 					// uncompress byteArray
-					String contentEncoding = contentEncodingHeader.getValue();
-					
-					InputStream is;
-					if (contentEncoding.equalsIgnoreCase("gzip")) {
-						is = new GZIPInputStream(new ByteArrayInputStream(byteArray));
-					} else if (contentEncoding.equalsIgnoreCase("deflate")) {
-						is = new DeflaterInputStream(new ByteArrayInputStream(byteArray));
-					} else {
-						logger.error("Unexpected content encoding");
-						logger.error("  {}!", contentEncoding);
-						throw new UnexpectedException("Unexpected content encoding");
-					}
-					byte[] newByteArray = is.readAllBytes();
-					is.close();
-					byteArray = newByteArray;
+					byteArray = ContentEncoding.decode(contentEncodingHeader.getValue(), byteArray);
 				}
 			} catch (IOException e) {
 				byteArray = null;
@@ -96,7 +85,8 @@ public class Result {
 					this.charset = charset;
 				}
 			} else {
-				logger.warn("no Content-Type header");
+				// 304 Not Modified has no Content-Type header
+				if (code != HttpStatus.SC_NOT_MODIFIED) logger.warn("no Content-Type header");
 				this.contentType = null;
 				this.charset     = null;
 			}
@@ -117,28 +107,15 @@ public class Result {
 				byteArray = null;
 			} else {
 				try {
-					byteArray = EntityUtils.toByteArray(entity);
-					
-					Header contentEncodingHeader = response.getFirstHeader("Content-Encoding");
+					Header contentEncodingHeader = response.getFirstHeader(ContentEncoding.HEADER_CONTENT_ENCODING);
 					if (contentEncodingHeader != null) {
-						// uncompress byteArray
-						String contentEncoding = contentEncodingHeader.getValue();
-						
-						InputStream is;
-						if (contentEncoding.equalsIgnoreCase("gzip")) {
-							is = new GZIPInputStream(new ByteArrayInputStream(byteArray));
-						} else if (contentEncoding.equalsIgnoreCase("deflate")) {
-							is = new DeflaterInputStream(new ByteArrayInputStream(byteArray));
-						} else {
-							logger.error("Unexpected content encoding");
-							logger.error("  {}!", contentEncoding);
-							throw new UnexpectedException("Unexpected content encoding");
+						// uncompress content while reading
+						try (InputStream is = ContentEncoding.decode(contentEncodingHeader.getValue(), entity.getContent())) {
+							byteArray = is.readAllBytes();
 						}
-						byte[] newByteArray = is.readAllBytes();
-						is.close();
-						byteArray = newByteArray;
+					} else {
+						byteArray = EntityUtils.toByteArray(entity);
 					}
-
 				} catch (IOException e) {
 					byteArray = null;
 				}
@@ -173,13 +150,25 @@ public class Result {
 					this.charset = charset;
 				}
 			} else {
-				logger.warn("no Content-Type header");
+				// 304 Not Modified has no Content-Type header
+				if (code != HttpStatus.SC_NOT_MODIFIED) logger.warn("no Content-Type header");
 				this.contentType = null;
 				this.charset     = null;
 			}
 		}
 	}
 
+	// share response of other task of same request. used by Coalescer
+	Result(Task task, Result that) {
+		this.task        = task;
+		this.head        = that.head;
+		this.body        = that.body;
+		this.version     = that.version;
+		this.code        = that.code;
+		this.contentType = that.contentType;
+		this.charset     = that.charset;
+	}
+
 	public String getBodyAsString() {
 		if (charset == null) {
 			logger.error("charset is null");
@@ -188,4 +177,129 @@ public class Result {
 			return new String(body, charset);
 		}
 	}
+	
+	//
+	// Views of body without copy of byte array. Null body is treated as empty body.
+	//
+	private static final byte[] EMPTY_BODY = new byte[0];
+	public ByteBuffer getBodyAsByteBuffer() {
+		return ByteBuffer.wrap(body == null ? EMPTY_BODY : body).asReadOnlyBuffer();
+	}
+	public InputStream getBodyAsInputStream() {
+		return new ByteArrayInputStream(body == null ? EMPTY_BODY : body);
+	}
+	// for parser that takes Reader like JSON.unmarshal()
+	public Reader getBodyAsReader() {
+		return getBodyAsReader(null);
+	}
+	public Reader getBodyAsReader(Charset defaultCharset) {
+		return new InputStreamReader(getBodyAsInputStream(), getCharset(defaultCharset));
+	}
+	
+	//
+	// Body as CharSequence for parser that takes CharSequence like Pattern.matcher() and ScrapeUtil
+	//   Body is decoded on first access and decoded value is kept in this result.
+	//   Body of ISO-8859-1 and ASCII only body of UTF-8 and US-ASCII are not decoded. char is taken from byte array.
+	//
+	private BodyCharSequence bodyCharSequence = null;
+	public CharSequence getBodyAsCharSequence() {
+		return getBodyAsCharSequence(null);
+	}
+	public CharSequence getBodyAsCharSequence(Charset defaultCharset) {
+		Charset myCharset = getCharset(defaultCharset);
+		BodyCharSequence ret = bodyCharSequence;
+		if (ret == null || !ret.charset.equals(myCharset)) {
+			ret = new BodyCharSequence(body == null ? EMPTY_BODY : body, myCharset);
+			bodyCharSequence = ret;
+		}
+		return ret;
+	}
+	private Charset getCharset(Charset defaultCharset) {
+		if (charset != null)        return charset;
+		if (defaultCharset != null) return defaultCharset;
+		
+		logger.error("charset is null");
+		logger.error("  uri    {}", task.uri);
+		logger.error("  header {}", Arrays.asList(head.getHeaders()));
+		throw new UnexpectedException("charset is null");
+	}
+	
+	private static final class BodyCharSequence implements CharSequence {
+		private final byte[]  body;
+		private final Charset charset;
+		private CharSequence  decoded = null;
+		
+		BodyCharSequence(byte[] body, Charset charset) {
+			this.body    = body;
+			this.charset = charset;
+		}
+		
+		private CharSequence get() {
+			if (decoded == null) {
+				if (charset.equals(StandardCharsets.ISO_8859_1) || (isASCIICompatible(charset) && isASCII(body))) {
+					decoded = new ByteCharSequence(body, 0, body.length);
+				} else {
+					decoded = charset.decode(ByteBuffer.wrap(body)).asReadOnlyBuffer();
+				}
+			}
+			return decoded;
+		}
+		private static boolean isASCIICompatible(Charset charset) {
+			return charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII);
+		}
+		private static boolean isASCII(byte[] body) {
+			for(var e: body) {
+				if (e < 0) return false;
+			}
+			return true;
+		}
+		
+		@Override
+		public int length() {
+			return get().length();
+		}
+		@Override
+		public char charAt(int index) {
+			return get().charAt(index);
+		}
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return get().subSequence(start, end);
+		}
+		@Override
+		public String toString() {
+			return get().toString();
+		}
+	}
+	// byte array as CharSequence of ISO-8859-1
+	private static final class ByteCharSequence implements CharSequence {
+		private final byte[] array;
+		private final int    offset;
+		private final int    length;
+		
+		ByteCharSequence(byte[] array, int offset, int length) {
+			this.array  = array;
+			this.offset = offset;
+			this.length = length;
+		}
+		
+		@Override
+		public int length() {
+			return length;
+		}
+		@Override
+		public char charAt(int index) {
+			if (index < 0 || length <= index) throw new IndexOutOfBoundsException(index);
+			return (char)(array[offset + index] & 0xFF);
+		}
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			if (start < 0 || end < start || length < end) throw new IndexOutOfBoundsException();
+			return new ByteCharSequence(array, offset + start, end - start);
+		}
+		@Override
+		public String toString() {
+			return new String(array, offset, length, StandardCharsets.ISO_8859_1);
+		}
+	}
 }
\ No newline at end of file
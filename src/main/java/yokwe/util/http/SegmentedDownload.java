@@ -0,0 +1,432 @@
+package yokwe.util.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hc.core5.http.ClassicHttpRequest;
+import org.apache.hc.core5.http.ClassicHttpResponse;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.Method;
+import org.apache.hc.core5.http.impl.bootstrap.HttpRequester;
+import org.apache.hc.core5.http.message.BasicClassicHttpRequest;
+import org.apache.hc.core5.http.protocol.HttpCoreContext;
+import org.apache.hc.core5.util.Timeout;
+
+import yokwe.util.FileUtil;
+import yokwe.util.UnexpectedException;
+
+//
+// Download large file with Range request over several connections.
+//   Content is written to file.part with positional write. Progress of each segment is saved in file.part-state.
+//   Download after failure resumes from file.part and file.part-state.
+//   If server doesn't support Range request, whole content is downloaded with one request.
+//   Range request has If-Range with validator of probe. If content is changed, server returns 200 and download restarts from scratch.
+//
+public class SegmentedDownload {
+	private static final org.slf4j.Logger logger = yokwe.util.LoggerUtil.getLogger();
+	
+	private static final String SUFFIX_PART  = ".part";
+	private static final String SUFFIX_STATE = ".part-state";
+	
+	private static final int  BUFFER_SIZE         = 64 * 1024;
+	private static final long SAVE_STATE_INTERVAL = 1024 * 1024; // save state every 1MB of segment
+	
+	private static final int  DEFAULT_SEGMENT_COUNT    = 4;
+	private static final long DEFAULT_MIN_SEGMENT_SIZE = 4 * 1024 * 1024;
+	private static final int  DEFAULT_RETRY_COUNT      = 5;
+	
+	public static SegmentedDownload getInstance() {
+		return new SegmentedDownload(RequesterBuilder.getDefault());
+	}
+	public static SegmentedDownload getInstance(RequesterBuilder requesterBuilder) {
+		return new SegmentedDownload(requesterBuilder);
+	}
+	
+	private final HttpRequester       requester;
+	private final Timeout             connectTimeout;
+	private final Map<String, String> headerMap = new TreeMap<>();
+	private int                       segmentCount   = DEFAULT_SEGMENT_COUNT;
+	private long                      minSegmentSize = DEFAULT_MIN_SEGMENT_SIZE;
+	private int                       retryCount     = DEFAULT_RETRY_COUNT;
+	
+	private SegmentedDownload(RequesterBuilder requesterBuilder) {
+		this.requester      = requesterBuilder.getHttpRequester();
+		this.connectTimeout = Timeout.ofSeconds(requesterBuilder.connectTimeout);
+		headerMap.put("User-Agent", HttpUtil.DEFAULT_USER_AGENT);
+	}
+	
+	public SegmentedDownload withSegmentCount(int newValue) {
+		segmentCount = newValue;
+		return this;
+	}
+	public SegmentedDownload withMinSegmentSize(long newValue) {
+		minSegmentSize = newValue;
+		return this;
+	}
+	public SegmentedDownload withRetryCount(int newValue) {
+		retryCount = newValue;
+		return this;
+	}
+	public SegmentedDownload withHeader(String name, String value) {
+		headerMap.put(name, value);
+		return this;
+	}
+	public SegmentedDownload withReferer(String value) {
+		return withHeader("Referer", value);
+	}
+	public SegmentedDownload withUserAgent(String value) {
+		return withHeader("User-Agent", value);
+	}
+	
+	
+	//
+	// State of download saved in file.part-state
+	//
+	private static class Segment {
+		final long start;
+		final long end;    // inclusive
+		long       done;   // number of bytes written
+		
+		Segment(long start, long end, long done) {
+			this.start = start;
+			this.end   = end;
+			this.done  = done;
+		}
+		long length() {
+			return end - start + 1;
+		}
+		boolean isCompleted() {
+			return done == length();
+		}
+	}
+	private static class State {
+		long          total;
+		String        validator;
+		List<Segment> segmentList = new ArrayList<>();
+		
+		static State load(File file) {
+			if (!file.canRead()) return null;
+			
+			State state = new State();
+			for(var line: FileUtil.read().file(file).split("\n")) {
+				String[] tokens = line.split(" ", 2);
+				switch(tokens[0]) {
+				case "total":
+					state.total = Long.parseLong(tokens[1]);
+					break;
+				case "validator":
+					state.validator = tokens[1];
+					break;
+				case "segment":
+				{
+					String[] values = tokens[1].split(" ");
+					state.segmentList.add(new Segment(Long.parseLong(values[0]), Long.parseLong(values[1]), Long.parseLong(values[2])));
+				}
+					break;
+				default:
+					break;
+				}
+			}
+			return state;
+		}
+		synchronized void save(File file) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("total ").append(total).append("\n");
+			if (validator != null) sb.append("validator ").append(validator).append("\n");
+			for(var e: segmentList) {
+				sb.append(String.format("segment %d %d %d%n", e.start, e.end, e.done));
+			}
+			FileUtil.write().file(file, sb.toString());
+		}
+	}
+	
+	
+	public void download(String uriString, File file) {
+		URI  uri       = URI.create(uriString);
+		File partFile  = new File(file.getPath() + SUFFIX_PART);
+		File stateFile = new File(file.getPath() + SUFFIX_STATE);
+		
+		if (!file.getAbsoluteFile().getParentFile().exists()) {
+			file.getAbsoluteFile().getParentFile().mkdirs();
+		}
+		
+		for(int restart = 0; ; restart++) {
+			try {
+				download(uri, partFile, stateFile);
+				break;
+			} catch (ContentChangedException e) {
+				if (retryCount <= restart) {
+					logger.error("content is changed during download");
+					logger.error("  uri    {}", uri);
+					throw new UnexpectedException("content is changed during download", e);
+				}
+				logger.warn("restart {}  content is changed  {}", restart + 1, uri);
+				partFile.delete();
+				stateFile.delete();
+			}
+		}
+		
+		try {
+			move(partFile, file);
+			stateFile.delete();
+		} catch (IOException e) {
+			String exceptionName = e.getClass().getSimpleName();
+			logger.error("{} {}", exceptionName, e);
+			throw new UnexpectedException(exceptionName, e);
+		}
+	}
+	private void download(URI uri, File partFile, File stateFile) {
+		try {
+			// probe range support and total size
+			Probe probe = probe(uri);
+			
+			if (probe.total < 0) {
+				// server doesn't support Range request. download whole content with one request
+				logger.info("no range support  {}", uri);
+				partFile.delete();
+				stateFile.delete();
+				try (FileChannel channel = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+					fetch(uri, null, null, channel, 0, null, null, null);
+					channel.force(true);
+				}
+			} else {
+				State state = State.load(stateFile);
+				if (state == null || state.total != probe.total || !partFile.exists() || !equals(state.validator, probe.validator)) {
+					// start from scratch
+					state = newState(probe);
+					partFile.delete();
+				} else {
+					long done = state.segmentList.stream().mapToLong(o -> o.done).sum();
+					logger.info("resume  {} / {}  {}", done, state.total, partFile.getPath());
+				}
+				state.save(stateFile);
+				
+				downloadSegment(uri, partFile, stateFile, state);
+			}
+		} catch (IOException | HttpException e) {
+			String exceptionName = e.getClass().getSimpleName();
+			logger.error("{} {}", exceptionName, e);
+			throw new UnexpectedException(exceptionName, e);
+		}
+	}
+	private static boolean equals(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+	
+	private State newState(Probe probe) {
+		State state = new State();
+		state.total     = probe.total;
+		state.validator = probe.validator;
+		
+		int count = (int)Math.max(1, Math.min(segmentCount, (probe.total + minSegmentSize - 1) / minSegmentSize));
+		long size = (probe.total + count - 1) / count;
+		for(long start = 0; start < probe.total; start += size) {
+			long end = Math.min(start + size, probe.total) - 1;
+			state.segmentList.add(new Segment(start, end, 0));
+		}
+		return state;
+	}
+	
+	private void downloadSegment(URI uri, File partFile, File stateFile, State state) throws IOException {
+		List<Segment> list = state.segmentList.stream().filter(o -> !o.isCompleted()).toList();
+		
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, list.size()));
+		try (FileChannel channel = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			List<Future<?>> futureList = new ArrayList<>();
+			for(var segment: list) {
+				futureList.add(executor.submit(() -> {
+					downloadSegment(uri, channel, stateFile, state, segment);
+					return null;
+				}));
+			}
+			for(var future: futureList) {
+				future.get();
+			}
+			channel.force(true);
+			state.save(stateFile);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof ContentChangedException) {
+				throw (ContentChangedException)e.getCause();
+			}
+			// keep part file and state file to resume
+			state.save(stateFile);
+			String exceptionName = e.getClass().getSimpleName();
+			logger.error("{} {}", exceptionName, e);
+			throw new UnexpectedException(exceptionName, e);
+		} catch (InterruptedException e) {
+			// keep part file and state file to resume
+			state.save(stateFile);
+			String exceptionName = e.getClass().getSimpleName();
+			logger.error("{} {}", exceptionName, e);
+			throw new UnexpectedException(exceptionName, e);
+		} finally {
+			executor.shutdownNow();
+			// wait other segment. So stale thread doesn't write state file after restart
+			try {
+				executor.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	private void downloadSegment(URI uri, FileChannel channel, File stateFile, State state, Segment segment) throws IOException, HttpException {
+		for(int retry = 0; ; retry++) {
+			String range = String.format("bytes=%d-%d", segment.start + segment.done, segment.end);
+			try {
+				fetch(uri, range, state.validator, channel, segment.start + segment.done, segment, state, stateFile);
+			} catch (IOException e) {
+				if (retryCount <= retry) throw e;
+				String exceptionName = e.getClass().getSimpleName();
+				logger.warn("retry {}  {}  {} {}", retry + 1, range, exceptionName, e.getMessage());
+				continue;
+			}
+			if (segment.isCompleted()) return;
+			
+			if (retryCount <= retry) {
+				logger.error("segment is not completed");
+				logger.error("  uri    {}", uri);
+				logger.error("  range  {}", range);
+				throw new UnexpectedException("segment is not completed");
+			}
+			logger.warn("retry {}  {}  short segment {} / {}", retry + 1, range, segment.done, segment.length());
+		}
+	}
+	
+	
+	private static class Probe {
+		final long   total;     // -1 means no range support
+		final String validator;
+		
+		Probe(long total, String validator) {
+			this.total     = total;
+			this.validator = validator;
+		}
+	}
+	// use HEAD request to check range support and size of content
+	private Probe probe(URI uri) throws IOException, HttpException {
+		ClassicHttpRequest request = newRequest(Method.HEAD, uri, null);
+		return requester.execute(HttpHost.create(uri), request, connectTimeout, HttpCoreContext.create(), response -> {
+			Header acceptRanges  = response.getFirstHeader("Accept-Ranges");
+			Header contentLength = response.getFirstHeader("Content-Length");
+			if (response.getCode() != HttpStatus.SC_OK || acceptRanges == null || !acceptRanges.getValue().equalsIgnoreCase("bytes") || contentLength == null) {
+				return new Probe(-1, null);
+			}
+			
+			Header etag         = response.getFirstHeader(HttpCache.ETAG);
+			Header lastModified = response.getFirstHeader(HttpCache.LAST_MODIFIED);
+			String validator    = etag != null ? etag.getValue() : (lastModified != null ? lastModified.getValue() : null);
+			return new Probe(Long.parseLong(contentLength.getValue().trim()), validator);
+		});
+	}
+	
+	private ClassicHttpRequest newRequest(Method method, URI uri, String range) {
+		return newRequest(method, uri, range, null);
+	}
+	private ClassicHttpRequest newRequest(Method method, URI uri, String range, String validator) {
+		ClassicHttpRequest request = new BasicClassicHttpRequest(method, uri);
+		headerMap.forEach((k, v) -> request.setHeader(k, v));
+		// byte range is meaningful only for identity encoding
+		request.setHeader(ContentEncoding.HEADER_ACCEPT_ENCODING, "identity");
+		if (range != null) {
+			request.setHeader("Range", range);
+			// If-Range doesn't accept weak etag
+			if (validator != null && !validator.startsWith("W/")) request.setHeader("If-Range", validator);
+		}
+		return request;
+	}
+	
+	// thrown when server returns whole content for range request
+	private static final class ContentChangedException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+	
+	// write content of response to channel from position
+	//   content after end of segment is ignored
+	private void fetch(URI uri, String range, String validator, FileChannel channel, long position, Segment segment, State state, File stateFile) throws IOException, HttpException {
+		ClassicHttpRequest request = newRequest(Method.GET, uri, range, validator);
+		requester.execute(HttpHost.create(uri), request, connectTimeout, HttpCoreContext.create(), (ClassicHttpResponse response) -> {
+			int code = response.getCode();
+			if (range != null && code == HttpStatus.SC_OK) {
+				// If-Range is not matched or range is ignored. content of part file is no longer valid
+				throw new ContentChangedException();
+			}
+			int expect = (range == null) ? HttpStatus.SC_OK : HttpStatus.SC_PARTIAL_CONTENT;
+			if (code != expect) {
+				logger.error("Unexpected code");
+				logger.error("  uri    {}", uri);
+				logger.error("  range  {}", range);
+				logger.error("  code   {} {}", code, response.getReasonPhrase());
+				throw new UnexpectedException("Unexpected code");
+			}
+			
+			if (range != null) {
+				// Content-Range must start from requested position. Otherwise content is written to wrong position
+				Header contentRange = response.getFirstHeader("Content-Range");
+				if (contentRange == null || !contentRange.getValue().trim().startsWith("bytes " + position + "-")) {
+					throw new IOException("Unexpected Content-Range  " + (contentRange == null ? null : contentRange.getValue()));
+				}
+			}
+			
+			HttpEntity entity = response.getEntity();
+			if (entity == null) return null;
+			
+			byte[]     buffer     = new byte[BUFFER_SIZE];
+			long       pos        = position;
+			long       limit      = (segment == null) ? Long.MAX_VALUE : segment.end + 1;
+			long       sinceSaved = 0;
+			try (InputStream is = entity.getContent()) {
+				for(;;) {
+					if (limit <= pos) break;
+					int len = is.read(buffer, 0, (int)Math.min(buffer.length, limit - pos));
+					if (len == -1) break;
+					
+					ByteBuffer bb = ByteBuffer.wrap(buffer, 0, len);
+					while(bb.hasRemaining()) {
+						pos += channel.write(bb, pos);
+					}
+					
+					if (segment != null) {
+						synchronized (state) {
+							segment.done += len;
+						}
+						sinceSaved += len;
+						if (SAVE_STATE_INTERVAL <= sinceSaved) {
+							state.save(stateFile);
+							sinceSaved = 0;
+						}
+					}
+				}
+			}
+			return null;
+		});
+	}
+	
+	private static void move(File source, File target) throws IOException {
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
@@ -27,23 +27,47 @@ public class StringTask {
 			if (result.body == null) {
 				page = "";
 			} else {
-				Charset myCharset = result.charset;
-				
-				if (myCharset == null) {
-					if (defaultCharset == null) {
-						logger.error("defaultCharset is null");
-						logger.error("  uri         {}", result.task.uri);
-						logger.error("  header {}", Arrays.asList(result.head.getHeaders()));
-						throw new UnexpectedException("defaultCharset is null");
-					} else {
-						myCharset = defaultCharset;
-					}
-				}
-				page = new String(result.body, myCharset);
+				page = new String(result.body, getCharset(result, defaultCharset));
 			}
 			consumer.accept(page);
 		}
 	}
+	// pass body as CharSequence that is decoded on demand. no String is created for regex and ScrapeUtil
+	private static class MyCharSequenceConsumer implements Consumer<Result> {
+		private Consumer<CharSequence> consumer;
+		private Charset                defaultCharset;
+		
+		public MyCharSequenceConsumer(Consumer<CharSequence> consumer, Charset defaultCharset) {
+			this.consumer        = consumer;
+			this.defaultCharset  = defaultCharset;
+		}
+		
+		@Override
+		public void accept(Result result) {
+			CharSequence page;
+			if (result.body == null) {
+				page = "";
+			} else {
+				page = result.getBodyAsCharSequence(getCharset(result, defaultCharset));
+			}
+			consumer.accept(page);
+		}
+	}
+	private static Charset getCharset(Result result, Charset defaultCharset) {
+		Charset myCharset = result.charset;
+		
+		if (myCharset == null) {
+			if (defaultCharset == null) {
+				logger.error("defaultCharset is null");
+				logger.error("  uri         {}", result.task.uri);
+				logger.error("  header {}", Arrays.asList(result.head.getHeaders()));
+				throw new UnexpectedException("defaultCharset is null");
+			} else {
+				myCharset = defaultCharset;
+			}
+		}
+		return myCharset;
+	}
 	
 	public static Task get(String uriString, Consumer<String> consumer, Charset defaultCharset) {
 		return Task.get(new MyConsumer(consumer, defaultCharset), URI.create(uriString));
@@ -53,6 +77,13 @@ public class StringTask {
 		return get(uriString, consumer, null);
 	}
 	
+	public static Task getCharSequence(String uriString, Consumer<CharSequence> consumer, Charset defaultCharset) {
+		return Task.get(new MyCharSequenceConsumer(consumer, defaultCharset), URI.create(uriString));
+	}
+	public static Task getCharSequence(String uriString, Consumer<CharSequence> consumer) {
+		return getCharSequence(uriString, consumer, null);
+	}
+	
 	public static Task post(String uriString, Consumer<String> consumer, String content, String contentTypeString) {
 		return Task.post(new MyConsumer(consumer, null), URI.create(uriString), content, ContentType.parse(contentTypeString));
 	}
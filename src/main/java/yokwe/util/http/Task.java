@@ -3,10 +3,15 @@ package yokwe.util.http;
 import java.net.URI;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.function.Consumer;
 
 import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
 import org.apache.hc.core5.http.Method;
+import org.apache.hc.core5.http.message.BasicHeader;
 
 import yokwe.util.UnexpectedException;
 
@@ -19,6 +24,19 @@ public class Task {
 	public final Method      method;
 	public final byte[]      entity;
 	public final ContentType contentType;
+	
+	// header specific to this task. header of Download is also added to request.
+	public final List<Header> headerList = new ArrayList<>();
+	
+	// scheduling of task. see TaskQueue
+	public int     priority = 0;    // task of higher priority is processed first
+	public Instant deadline = null; // task is dropped if task is not started before deadline
+	
+	// System.nanoTime() when request is sent. set by Download engine to measure latency
+	public volatile long sendTime = 0;
+	
+	// doneListener is called with result after consumer processed result
+	private Consumer<Result> doneListener = null;
 
 
 	public static Task get(Consumer<Result> consumer, URI uri) {
@@ -49,7 +67,27 @@ public class Task {
 		this.contentType = contentType;
 	}
 
+	public Task addHeader(String name, String value) {
+		headerList.add(new BasicHeader(name, value));
+		return this;
+	}
+
+	public Task setPriority(int newValue) {
+		priority = newValue;
+		return this;
+	}
+	public Task setDeadline(Instant newValue) {
+		deadline = newValue;
+		return this;
+	}
+
+	public Task setDoneListener(Consumer<Result> newValue) {
+		doneListener = newValue;
+		return this;
+	}
+
 	public void process(Result result) {
 		consumer.accept(result);
+		if (doneListener != null) doneListener.accept(result);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,215 @@
+package yokwe.util.http;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+//
+// Task queue used by DownloadSync and DownloadAsync
+//   Task of higher priority is processed first.
+//   Task is dropped if task is not started before deadline.
+//   Each host has own queue and hosts are served in round robin order.
+//   Number of running task of each host is limited by maxPerHost. So slow host doesn't block other host.
+//   Each host has circuit breaker. Task of host with open circuit stays in queue until circuit is half open.
+//   Task of host that doesn't recover after repeated open is dropped.
+//
+final class TaskQueue {
+	private static final org.slf4j.Logger logger = yokwe.util.LoggerUtil.getLogger();
+
+	private static final class Entry {
+		final Task task;
+		final long seq;
+
+		Entry(Task task, long seq) {
+			this.task = task;
+			this.seq  = seq;
+		}
+	}
+	private static final Comparator<Entry> ENTRY_ORDER =
+		Comparator.<Entry>comparingInt(o -> -o.task.priority)
+			.thenComparing(o -> o.task.deadline, Comparator.nullsLast(Comparator.naturalOrder()))
+			.thenComparingLong(o -> o.seq);
+
+	private static final class HostQueue {
+		final String               host;
+		final PriorityQueue<Entry> queue = new PriorityQueue<>(ENTRY_ORDER);
+		int                        running = 0;
+		CircuitBreaker             circuitBreaker;
+
+		HostQueue(String host, CircuitBreaker circuitBreaker) {
+			this.host           = host;
+			this.circuitBreaker = circuitBreaker;
+		}
+	}
+
+	private final Map<String, HostQueue> hostMap          = new HashMap<>();
+	private final ArrayDeque<HostQueue>  roundRobin       = new ArrayDeque<>();
+	private int                          size             = 0;
+	private long                         seq              = 0;
+	private int                          dropCount        = 0;
+	private int                          maxPerHost       = Integer.MAX_VALUE;
+	private Consumer<Task>               dropListener     = null;
+	private int                          failureThreshold = 0; // 0 means no circuit breaker
+	private Duration                     openDuration     = null;
+
+	static String getHost(Task task) {
+		return task.uri.getScheme() + "://" + task.uri.getAuthority();
+	}
+
+	synchronized void setMaxPerHost(int newValue) {
+		maxPerHost = (newValue <= 0) ? Integer.MAX_VALUE : newValue;
+	}
+
+	// circuit of host opens after failureThreshold consecutive failures. 0 disables circuit breaker
+	synchronized void setCircuitBreaker(int failureThreshold, Duration openDuration) {
+		this.failureThreshold = failureThreshold;
+		this.openDuration     = openDuration;
+		for(var hostQueue: hostMap.values()) {
+			hostQueue.circuitBreaker = createCircuitBreaker(hostQueue.host);
+		}
+	}
+	private CircuitBreaker createCircuitBreaker(String host) {
+		return failureThreshold <= 0 ? null : new CircuitBreaker(host, failureThreshold, openDuration);
+	}
+
+	// dropListener is called when task is dropped
+	synchronized void setDropListener(Consumer<Task> newValue) {
+		dropListener = newValue;
+	}
+
+	synchronized void add(Task task) {
+		String    host      = getHost(task);
+		HostQueue hostQueue = hostMap.get(host);
+		if (hostQueue == null) {
+			hostQueue = new HostQueue(host, createCircuitBreaker(host));
+			hostMap.put(host, hostQueue);
+			roundRobin.addLast(hostQueue);
+		}
+		hostQueue.queue.add(new Entry(task, seq++));
+		size++;
+		notifyAll();
+	}
+
+	synchronized int size() {
+		return size;
+	}
+	synchronized int getDropCount() {
+		return dropCount;
+	}
+	// host of queued task like "https://www.example.com"
+	synchronized List<String> getHostList() {
+		return new ArrayList<>(hostMap.keySet());
+	}
+
+	//
+	// Returns next task. Returns null if queue is empty.
+	// Waits while all hosts that have task reach maxPerHost or have open circuit.
+	// Caller must call done() after processing of returned task.
+	//
+	synchronized Task poll() {
+		for(;;) {
+			Instant   now       = Instant.now();
+			HostQueue best      = null;
+			Instant   wakeTime  = null; // earliest time that open circuit becomes half open or head task passes deadline
+			for(var hostQueue: roundRobin) {
+				// drop task that passed deadline
+				for(;;) {
+					Entry head = hostQueue.queue.peek();
+					if (head == null || head.task.deadline == null || now.isBefore(head.task.deadline)) break;
+					hostQueue.queue.poll();
+					logger.warn("drop task passed deadline  {}  {}", head.task.deadline, head.task.uri);
+					drop(head.task);
+				}
+				// drop task of dead host
+				if (hostQueue.circuitBreaker != null && hostQueue.circuitBreaker.isExhausted() && !hostQueue.queue.isEmpty()) {
+					logger.warn("drop task of host with exhausted circuit  {}  {}", hostQueue.host, hostQueue.queue.size());
+					while(!hostQueue.queue.isEmpty()) {
+						drop(hostQueue.queue.poll().task);
+					}
+				}
+				if (hostQueue.queue.isEmpty())         continue;
+				// head task can pass deadline while waiting. wake up to drop it and call dropListener
+				wakeTime = earlier(wakeTime, hostQueue.queue.peek().task.deadline);
+				if (maxPerHost <= hostQueue.running) continue;
+				if (hostQueue.circuitBreaker != null && !hostQueue.circuitBreaker.isAvailable(now)) {
+					wakeTime = earlier(wakeTime, hostQueue.circuitBreaker.getRetryTime());
+					continue;
+				}
+				// choose host of highest priority task. Use round robin order for host of same priority
+				if (best == null || hostQueue.queue.peek().task.priority > best.queue.peek().task.priority) {
+					best = hostQueue;
+				}
+			}
+
+			if (best != null) {
+				Entry entry = best.queue.poll();
+				size--;
+				best.running++;
+				if (best.circuitBreaker != null) best.circuitBreaker.onStart();
+				// move to last for round robin
+				roundRobin.remove(best);
+				roundRobin.addLast(best);
+				return entry.task;
+			}
+			if (size == 0) return null;
+
+			// all hosts that have task are busy or have open circuit. wait until done() is called, circuit becomes half open or task passes deadline
+			try {
+				if (wakeTime == null) {
+					wait();
+				} else {
+					wait(Math.max(1, Duration.between(now, wakeTime).toMillis()));
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+	}
+
+	private static Instant earlier(Instant a, Instant b) {
+		if (a == null) return b;
+		if (b == null) return a;
+		return b.isBefore(a) ? b : a;
+	}
+
+	private void drop(Task task) {
+		size--;
+		dropCount++;
+		if (dropListener != null) dropListener.accept(task);
+	}
+
+	// task is finished without request. for example, coalesced with other task
+	synchronized void done(Task task) {
+		HostQueue hostQueue = hostMap.get(getHost(task));
+		if (hostQueue != null && hostQueue.circuitBreaker != null) {
+			hostQueue.circuitBreaker.onCancel();
+		}
+		release(hostQueue);
+	}
+	// task is finished with request. success is used by circuit breaker of host
+	synchronized void done(Task task, boolean success) {
+		HostQueue hostQueue = hostMap.get(getHost(task));
+		if (hostQueue != null && hostQueue.circuitBreaker != null) {
+			if (success) {
+				hostQueue.circuitBreaker.onSuccess();
+			} else {
+				hostQueue.circuitBreaker.onFailure(Instant.now());
+			}
+		}
+		release(hostQueue);
+	}
+	private void release(HostQueue hostQueue) {
+		if (hostQueue != null && 0 < hostQueue.running) {
+			hostQueue.running--;
+		}
+		notifyAll();
+	}
+}
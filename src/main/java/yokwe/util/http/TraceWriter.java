@@ -0,0 +1,288 @@
+package yokwe.util.http;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpResponse;
+
+import yokwe.util.FileUtil;
+import yokwe.util.UnexpectedException;
+
+//
+// Asynchronous writer of http trace
+//   Caller thread only put trace into bounded queue. Trace is dropped when queue is full.
+//   Background thread writes body of trace into rolling zip archive and append line to index.
+//   Old archive is deleted when total size of archive exceeds maxTotalSize.
+//
+// Layout of traceDir
+//   index                      each line is "id<TAB>code<TAB>contentType<TAB>url<TAB>archive"
+//   trace-<timestamp>.zip      entry name is id
+//
+// Archive is readable after it is closed by roll, flush or close.
+// Line of index that refers deleted archive is removed when old archive is deleted.
+//
+public final class TraceWriter {
+	private static final org.slf4j.Logger logger = yokwe.util.LoggerUtil.getLogger();
+	
+	private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+	
+	public static final String INDEX          = "index";
+	public static final String ARCHIVE_PREFIX = "trace-";
+	public static final String ARCHIVE_SUFFIX = ".zip";
+	
+	private static final int  DEFAULT_QUEUE_SIZE       = 1000;
+	private static final long DEFAULT_MAX_ARCHIVE_SIZE = 64L * 1024 * 1024;   // 64MB
+	private static final long DEFAULT_MAX_TOTAL_SIZE   = 1024L * 1024 * 1024; // 1GB
+	
+	private static final Map<String, TraceWriter> instanceMap = new HashMap<>();
+	public static TraceWriter getInstance(String traceDir) {
+		synchronized (instanceMap) {
+			TraceWriter ret = instanceMap.get(traceDir);
+			if (ret == null) {
+				ret = new TraceWriter(traceDir, DEFAULT_QUEUE_SIZE);
+				instanceMap.put(traceDir, ret);
+			}
+			return ret;
+		}
+	}
+	
+	private static final class Entry {
+		final String id;
+		final int    code;
+		final String contentType;
+		final String url;
+		final byte[] body;
+		
+		Entry(String id, int code, String contentType, String url, byte[] body) {
+			this.id          = id;
+			this.code        = code;
+			this.contentType = contentType;
+			this.url         = url;
+			this.body        = body;
+		}
+	}
+	// special entry to flush archive and index
+	private static final Entry FLUSH = new Entry(null, 0, null, null, null);
+	
+	private final File                 traceDir;
+	private final BlockingQueue<Entry> queue;
+	private final AtomicLong           sequence  = new AtomicLong();
+	private final AtomicLong           dropCount = new AtomicLong();
+	private final Thread               thread;
+	
+	private volatile long maxArchiveSize = DEFAULT_MAX_ARCHIVE_SIZE;
+	private volatile long maxTotalSize   = DEFAULT_MAX_TOTAL_SIZE;
+	
+	// accessed only from writer thread
+	private ZipOutputStream archive      = null;
+	private String          archiveName  = null;
+	private long            archiveSize  = 0;
+	private BufferedWriter  indexWriter  = null;
+	
+	// number of processed FLUSH entry. used by flush() to wait writer thread
+	private long flushCount = 0;
+	
+	private TraceWriter(String traceDir, int queueSize) {
+		this.traceDir = new File(traceDir);
+		this.queue    = new ArrayBlockingQueue<>(queueSize);
+		this.thread   = new Thread(this::run, "TRACE-WRITER");
+		this.thread.setDaemon(true);
+		this.thread.start();
+		
+		Runtime.getRuntime().addShutdownHook(new Thread(this::flush));
+	}
+	
+	public TraceWriter setMaxArchiveSize(long newValue) {
+		maxArchiveSize = newValue;
+		return this;
+	}
+	public TraceWriter setMaxTotalSize(long newValue) {
+		maxTotalSize = newValue;
+		return this;
+	}
+	public long getDropCount() {
+		return dropCount.get();
+	}
+	
+	// returns id of trace, or null if trace is dropped. never block caller
+	public String write(String url, HttpResponse response, byte[] body) {
+		Header contentType = response.getFirstHeader("Content-Type");
+		
+		// append sequence number to avoid collision of id in same millisecond
+		String id = String.format("%s-%06d", LocalDateTime.now(ZoneId.systemDefault()).format(DATE_TIME_FORMATTER), sequence.incrementAndGet() % 1_000_000);
+		Entry entry = new Entry(id, response.getCode(), contentType == null ? "" : contentType.getValue(), url, body == null ? new byte[0] : body);
+		if (queue.offer(entry)) {
+			return id;
+		} else {
+			long count = dropCount.incrementAndGet();
+			if (count == 1 || (count % 1000) == 0) {
+				logger.warn("trace queue is full. dropped  {}", count);
+			}
+			return null;
+		}
+	}
+	
+	// wait until queued trace is written and current archive is closed
+	public void flush() {
+		synchronized (this) {
+			long target = flushCount + 1;
+			try {
+				queue.put(FLUSH);
+				while (flushCount < target && thread.isAlive()) {
+					wait(1000);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	private void run() {
+		for(;;) {
+			try {
+				Entry entry = queue.poll(1, TimeUnit.SECONDS);
+				if (entry == null) {
+					// idle. make index visible to reader
+					if (indexWriter != null) indexWriter.flush();
+					continue;
+				}
+				if (entry == FLUSH) {
+					closeArchive();
+					if (indexWriter != null) indexWriter.flush();
+					synchronized (this) {
+						flushCount++;
+						notifyAll();
+					}
+					continue;
+				}
+				writeEntry(entry);
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException e) {
+				String exceptionName = e.getClass().getSimpleName();
+				logger.warn("{} {}", exceptionName, e);
+				// discard broken archive and continue
+				if (archive != null) {
+					try {
+						archive.close();
+					} catch (IOException e2) {
+						// ignore
+					}
+					archive = null;
+				}
+			}
+		}
+	}
+	
+	private void writeEntry(Entry entry) throws IOException {
+		if (archive == null || maxArchiveSize <= archiveSize) {
+			closeArchive();
+			openArchive(entry.id);
+		}
+		
+		ZipEntry zipEntry = new ZipEntry(entry.id);
+		archive.putNextEntry(zipEntry);
+		archive.write(entry.body);
+		archive.closeEntry();
+		archiveSize += zipEntry.getCompressedSize();
+		
+		if (indexWriter == null) {
+			indexWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(traceDir, INDEX), true), StandardCharsets.UTF_8));
+		}
+		indexWriter.write(String.join("\t", entry.id, Integer.toString(entry.code), entry.contentType, entry.url, archiveName));
+		indexWriter.write('\n');
+	}
+	
+	private void openArchive(String id) throws IOException {
+		traceDir.mkdirs();
+		archiveName = ARCHIVE_PREFIX + id + ARCHIVE_SUFFIX;
+		archive     = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(new File(traceDir, archiveName)), 64 * 1024));
+		archiveSize = 0;
+	}
+	private void closeArchive() {
+		if (archive == null) return;
+		try {
+			archive.close();
+		} catch (IOException e) {
+			String exceptionName = e.getClass().getSimpleName();
+			logger.warn("{} {}", exceptionName, e);
+		}
+		archive = null;
+		removeOldArchive();
+	}
+	
+	private void removeOldArchive() {
+		File[] files = traceDir.listFiles((dir, name) -> name.startsWith(ARCHIVE_PREFIX) && name.endsWith(ARCHIVE_SUFFIX));
+		if (files == null) return;
+		
+		// name of archive contains timestamp. oldest archive comes first
+		Arrays.sort(files);
+		long total = 0;
+		for(var file: files) total += file.length();
+		
+		List<File> deleteList = new ArrayList<>();
+		for(var file: files) {
+			if (total <= maxTotalSize) break;
+			total -= file.length();
+			deleteList.add(file);
+		}
+		if (deleteList.isEmpty()) return;
+		
+		Set<String> deletedSet = new HashSet<>();
+		for(var file: deleteList) {
+			logger.info("delete old trace archive  {}", file.getPath());
+			if (file.delete()) {
+				deletedSet.add(file.getName());
+			} else {
+				logger.warn("delete failed  {}", file.getPath());
+			}
+		}
+		pruneIndex(deletedSet);
+	}
+	// remove line of deleted archive from index
+	private void pruneIndex(Set<String> deletedSet) {
+		File indexFile = new File(traceDir, INDEX);
+		try {
+			if (indexWriter != null) {
+				indexWriter.close();
+				indexWriter = null;
+			}
+			if (!indexFile.exists()) return;
+			
+			StringBuilder sb = new StringBuilder();
+			for(var line: FileUtil.read().file(indexFile).split("\n")) {
+				int pos = line.lastIndexOf('\t');
+				if (pos == -1) continue;
+				if (deletedSet.contains(line.substring(pos + 1))) continue;
+				sb.append(line).append('\n');
+			}
+			// reader of index sees old or new index
+			FileUtil.write().withAtomic(true).file(indexFile, sb.toString());
+		} catch (IOException | UnexpectedException e) {
+			String exceptionName = e.getClass().getSimpleName();
+			logger.warn("{} {}", exceptionName, e);
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package yokwe.util.http;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.io.HttpClientConnection;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.pool.ManagedConnPool;
+import org.apache.hc.core5.pool.PoolEntry;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+
+//
+// Connection pool that checks connection idle longer than validateAfterInactivity before reuse
+//   Stale connection (closed by server while idle) is discarded and HttpRequester opens new connection.
+//   Without check, request on stale connection fails with NoHttpResponseException in the middle of run.
+//
+final class ValidatingConnPool implements ManagedConnPool<HttpHost, HttpClientConnection> {
+	private static final org.slf4j.Logger logger = yokwe.util.LoggerUtil.getLogger();
+	
+	private final ManagedConnPool<HttpHost, HttpClientConnection> pool;
+	private final long                                           validateAfterInactivity; // in milliseconds
+	
+	ValidatingConnPool(ManagedConnPool<HttpHost, HttpClientConnection> pool, int validateAfterInactivitySeconds) {
+		this.pool                    = pool;
+		this.validateAfterInactivity = validateAfterInactivitySeconds * 1000L;
+	}
+	
+	private PoolEntry<HttpHost, HttpClientConnection> validate(PoolEntry<HttpHost, HttpClientConnection> entry) {
+		if (entry != null && entry.hasConnection() && validateAfterInactivity <= System.currentTimeMillis() - entry.getUpdated()) {
+			boolean stale;
+			try {
+				stale = entry.getConnection().isStale();
+			} catch (IOException e) {
+				stale = true;
+			}
+			if (stale) {
+				logger.debug("discard stale connection  {}", entry.getRoute());
+				entry.discardConnection(CloseMode.IMMEDIATE);
+			}
+		}
+		return entry;
+	}
+	
+	private final class ValidatingFuture implements Future<PoolEntry<HttpHost, HttpClientConnection>> {
+		private final Future<PoolEntry<HttpHost, HttpClientConnection>> future;
+		
+		ValidatingFuture(Future<PoolEntry<HttpHost, HttpClientConnection>> future) {
+			this.future = future;
+		}
+		
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return future.cancel(mayInterruptIfRunning);
+		}
+		@Override
+		public boolean isCancelled() {
+			return future.isCancelled();
+		}
+		@Override
+		public boolean isDone() {
+			return future.isDone();
+		}
+		@Override
+		public PoolEntry<HttpHost, HttpClientConnection> get() throws InterruptedException, ExecutionException {
+			return validate(future.get());
+		}
+		@Override
+		public PoolEntry<HttpHost, HttpClientConnection> get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			return validate(future.get(timeout, unit));
+		}
+	}
+	
+	@Override
+	public Future<PoolEntry<HttpHost, HttpClientConnection>> lease(HttpHost route, Object state, Timeout requestTimeout, FutureCallback<PoolEntry<HttpHost, HttpClientConnection>> callback) {
+		if (callback == null) {
+			return new ValidatingFuture(pool.lease(route, state, requestTimeout, null));
+		} else {
+			return pool.lease(route, state, requestTimeout, new FutureCallback<PoolEntry<HttpHost, HttpClientConnection>>() {
+				@Override
+				public void completed(PoolEntry<HttpHost, HttpClientConnection> result) {
+					callback.completed(validate(result));
+				}
+				@Override
+				public void failed(Exception e) {
+					callback.failed(e);
+				}
+				@Override
+				public void cancelled() {
+					callback.cancelled();
+				}
+			});
+		}
+	}
+	@Override
+	public void release(PoolEntry<HttpHost, HttpClientConnection> entry, boolean reusable) {
+		pool.release(entry, reusable);
+	}
+	
+	@Override
+	public PoolStats getTotalStats() {
+		return pool.getTotalStats();
+	}
+	@Override
+	public PoolStats getStats(HttpHost route) {
+		return pool.getStats(route);
+	}
+	@Override
+	public void setMaxTotal(int max) {
+		pool.setMaxTotal(max);
+	}
+	@Override
+	public int getMaxTotal() {
+		return pool.getMaxTotal();
+	}
+	@Override
+	public void setDefaultMaxPerRoute(int max) {
+		pool.setDefaultMaxPerRoute(max);
+	}
+	@Override
+	public int getDefaultMaxPerRoute() {
+		return pool.getDefaultMaxPerRoute();
+	}
+	@Override
+	public void setMaxPerRoute(HttpHost route, int max) {
+		pool.setMaxPerRoute(route, max);
+	}
+	@Override
+	public int getMaxPerRoute(HttpHost route) {
+		return pool.getMaxPerRoute(route);
+	}
+	@Override
+	public void closeIdle(TimeValue idleTime) {
+		pool.closeIdle(idleTime);
+	}
+	@Override
+	public void closeExpired() {
+		pool.closeExpired();
+	}
+	@Override
+	public Set<HttpHost> getRoutes() {
+		return pool.getRoutes();
+	}
+	@Override
+	public void close(CloseMode closeMode) {
+		pool.close(closeMode);
+	}
+	@Override
+	public void close() throws IOException {
+		pool.close();
+	}
+}
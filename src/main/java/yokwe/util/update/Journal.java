@@ -0,0 +1,115 @@
+package yokwe.util.update;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+import yokwe.util.FileUtil;
+import yokwe.util.UnexpectedException;
+
+//
+// Append only journal of task processed by UpdateComplexGeneric
+//   Each line is "C<TAB>key" for completed task or "F<TAB>key" for failed task.
+//   Later line overrides earlier line of same key.
+//
+public class Journal {
+	private static final org.slf4j.Logger logger = yokwe.util.LoggerUtil.getLogger();
+	
+	private static final String COMPLETED = "C";
+	private static final String FAILED    = "F";
+	
+	private final File        file;
+	private final Set<String> completedSet = new HashSet<>();
+	private final Set<String> failedSet    = new HashSet<>();
+	private BufferedWriter    writer       = null;
+	
+	public Journal(File file) {
+		this.file = file;
+		
+		if (file.canRead()) {
+			for(var line: FileUtil.read().file(file).split("\n")) {
+				int pos = line.indexOf('\t');
+				if (pos == -1) continue; // ignore incomplete last line
+				var type = line.substring(0, pos);
+				var key  = line.substring(pos + 1);
+				if (type.equals(COMPLETED)) {
+					completedSet.add(key);
+					failedSet.remove(key);
+				} else if (type.equals(FAILED)) {
+					failedSet.add(key);
+				}
+			}
+		}
+	}
+	
+	public File getFile() {
+		return file;
+	}
+	
+	public synchronized boolean isCompleted(String key) {
+		return completedSet.contains(key);
+	}
+	public synchronized int getCompletedCount() {
+		return completedSet.size();
+	}
+	public synchronized int getFailedCount() {
+		return failedSet.size();
+	}
+	
+	public synchronized void completed(String key) {
+		if (completedSet.add(key)) {
+			failedSet.remove(key);
+			append(COMPLETED, key);
+		}
+	}
+	public synchronized void failed(String key) {
+		if (!completedSet.contains(key) && failedSet.add(key)) {
+			append(FAILED, key);
+		}
+	}
+	
+	private void append(String type, String key) {
+		try {
+			if (writer == null) {
+				file.getParentFile().mkdirs();
+				writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+			}
+			writer.write(type);
+			writer.write('\t');
+			writer.write(key);
+			writer.write('\n');
+			// flush each line. So journal survives crash of process
+			writer.flush();
+		} catch (IOException e) {
+			String exceptionName = e.getClass().getSimpleName();
+			logger.error("{} {}", exceptionName, e);
+			throw new UnexpectedException(exceptionName, e);
+		}
+	}
+	
+	public synchronized void close() {
+		if (writer != null) {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				String exceptionName = e.getClass().getSimpleName();
+				logger.error("{} {}", exceptionName, e);
+				throw new UnexpectedException(exceptionName, e);
+			} finally {
+				writer = null;
+			}
+		}
+	}
+	
+	public synchronized void delete() {
+		close();
+		file.delete();
+		completedSet.clear();
+		failedSet.clear();
+	}
+}
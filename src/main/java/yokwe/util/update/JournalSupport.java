@@ -0,0 +1,12 @@
+package yokwe.util.update;
+
+//
+// Strategy of journal of UpdateComplexGeneric
+//   Journal is used only when UpdateComplexGeneric.journalSupport is not null.
+//
+public interface JournalSupport<U> {
+	// returns key of task in journal. different task must have different key
+	public String getKey(U task);
+	// call onDone only when task is completed successfully. failed task like 404 and 500 must not call onDone
+	public void watch(U task, Runnable onDone);
+}
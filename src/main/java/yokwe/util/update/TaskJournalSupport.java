@@ -0,0 +1,36 @@
+package yokwe.util.update;
+
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.Method;
+
+import yokwe.util.HashCode;
+import yokwe.util.StringUtil;
+import yokwe.util.http.Task;
+
+//
+// JournalSupport of http Task
+//   Key of GET and HEAD is method and uri. Key of other method has content type and digest of entity.
+//   So POST of different body to same uri has different key.
+//
+public final class TaskJournalSupport implements JournalSupport<Task> {
+	public static final TaskJournalSupport INSTANCE = new TaskJournalSupport();
+	
+	private TaskJournalSupport() {
+	}
+	
+	@Override
+	public String getKey(Task task) {
+		if (task.method == Method.GET || task.method == Method.HEAD || task.entity == null) {
+			return task.method + " " + task.uri;
+		}
+		String digest = StringUtil.toHexString(HashCode.getHashCode(task.entity, HashCode.ALGORITHM_SHA256));
+		return task.method + " " + task.uri + " " + task.contentType + " " + digest;
+	}
+	@Override
+	public void watch(Task task, Runnable onDone) {
+		// 304 means file is up to date
+		task.setDoneListener(o -> {
+			if ((HttpStatus.SC_SUCCESS <= o.code && o.code < HttpStatus.SC_REDIRECTION && o.body != null) || o.code == HttpStatus.SC_NOT_MODIFIED) onDone.run();
+		});
+	}
+}
@@ -1,19 +1,34 @@
 package yokwe.util.update;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
 
+import yokwe.util.FileUtil;
 import yokwe.util.Storage;
 import yokwe.util.ThreadUtil;
 
 public abstract class UpdateComplexGeneric<T, U> extends UpdateBase {
 	private static final org.slf4j.Logger logger = yokwe.util.LoggerUtil.getLogger();
-
+	
 	protected abstract List<T>    getList          ();
 	protected abstract void       delistUnknownFile(List<T> list);
 	protected abstract List<U>    getTaskList      (List<T> list);
 	protected abstract void       downloadFile     (List<U> taskList);
 	protected abstract void       updateFile       (List<T> list);
 	
+	//
+	// Journal of task
+	//   If journalSupport is not null, completed and failed task are recorded in journal.
+	//   Restarted run skips completed task, and retry processes only failed task without calling getTaskList() again.
+	//   JournalSupport gives key of task and notifies completion of task.
+	//
+	protected JournalSupport<U> journalSupport = null;
+	
+	protected File getJournalFile() {
+		return Storage.storage.getFile("journal", getClass().getTypeName());
+	}
+	
 	@Override
 	public void update() {
 		Storage.initialize();
@@ -22,21 +37,73 @@ public abstract class UpdateComplexGeneric<T, U> extends UpdateBase {
 		
 		var list = getList();
 		logger.info("list  {}", list.size());
-
+		
 		delistUnknownFile(list);
 		
+		Journal journal = null;
+		if (journalSupport != null) {
+			journal = downloadFileWithJournal(list, journalSupport);
+		} else {
+			for(int retry = 1; retry < 10; retry++) {
+				logger.info("  retry  {}", retry);
+				var taskList = getTaskList(list);
+				logger.info("  task   {}", taskList.size());
+				if (taskList.isEmpty()) break;
+				
+				downloadFile(taskList);
+				
+				ThreadUtil.sleep(1000);
+			}
+		}
+		
+		updateFile(list);
+		
+		if (journal != null) {
+			// run is finished. next run starts from scratch
+			journal.delete();
+		}
+	}
+	
+	private Journal downloadFileWithJournal(List<T> list, JournalSupport<U> support) {
+		var file = getJournalFile();
+		// journal of previous day is stale
+		if (file.exists() && FileUtil.getLastModifiedDuration(file).compareTo(gracePeriod) > 0) {
+			logger.info("delete stale journal  {}", file.getPath());
+			file.delete();
+		}
+		
+		var journal = new Journal(file);
+		logger.info("journal  {}  completed {}  failed {}", file.getPath(), journal.getCompletedCount(), journal.getFailedCount());
+		
+		// skip task completed in previous run
+		var taskList = new ArrayList<U>();
+		for(var task: getTaskList(list)) {
+			var key = support.getKey(task);
+			if (journal.isCompleted(key)) continue;
+			support.watch(task, () -> journal.completed(key));
+			taskList.add(task);
+		}
+		
 		for(int retry = 1; retry < 10; retry++) {
 			logger.info("  retry  {}", retry);
-			var taskList = getTaskList(list);
 			logger.info("  task   {}", taskList.size());
 			if (taskList.isEmpty()) break;
 			
 			downloadFile(taskList);
 			
+			// retry only failed task
+			var failedList = new ArrayList<U>();
+			for(var task: taskList) {
+				var key = support.getKey(task);
+				if (journal.isCompleted(key)) continue;
+				journal.failed(key);
+				failedList.add(task);
+			}
+			taskList = failedList;
+			
 			ThreadUtil.sleep(1000);
 		}
 		
-		updateFile(list);
-
+		return journal;
 	}
 }
@@ -3,5 +3,8 @@ package yokwe.util.update;
 import yokwe.util.http.Task;
 
 public abstract class UpdateComplexTask<T> extends UpdateComplexGeneric<T, Task> {
-	//
+	// call useJournal() in constructor of subclass to record task in journal
+	protected void useJournal() {
+		journalSupport = TaskJournalSupport.INSTANCE;
+	}
 }
@@ -0,0 +1,196 @@
+package yokwe.util.http.mock;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import yokwe.util.UnexpectedException;
+import yokwe.util.http.Download;
+import yokwe.util.http.DownloadAsync;
+import yokwe.util.http.DownloadSync;
+import yokwe.util.http.HttpUtil;
+import yokwe.util.http.RequesterBuilder;
+import yokwe.util.http.Task;
+
+//
+// Benchmark of DownloadSync, DownloadAsync and HttpUtil using MockServer
+//   Measure requests per second and latency percentile of each engine
+//
+public final class Benchmark {
+	private static final org.slf4j.Logger logger = yokwe.util.LoggerUtil.getLogger();
+	
+	public static final class Report {
+		public final String name;
+		public final int    requestCount;
+		public final int    successCount;
+		public final long   elapsedNanos;
+		public final long[] latencyNanos; // sorted
+		
+		private Report(String name, int requestCount, int successCount, long elapsedNanos, long[] latencyNanos) {
+			this.name         = name;
+			this.requestCount = requestCount;
+			this.successCount = successCount;
+			this.elapsedNanos = elapsedNanos;
+			this.latencyNanos = latencyNanos;
+			Arrays.sort(this.latencyNanos);
+		}
+		
+		public double getRequestPerSecond() {
+			return successCount * 1_000_000_000.0 / elapsedNanos;
+		}
+		// percentile in range of [0, 100]. returns value in milliseconds
+		public double getLatency(double percentile) {
+			if (latencyNanos.length == 0) return Double.NaN;
+			int index = (int)Math.ceil(percentile / 100.0 * latencyNanos.length) - 1;
+			index = Math.max(0, Math.min(latencyNanos.length - 1, index));
+			return latencyNanos[index] / 1_000_000.0;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("%-14s  %6d / %6d  %9.1f req/s  p50 %8.2f  p90 %8.2f  p99 %8.2f  p99.9 %8.2f  max %8.2f ms",
+				name, successCount, requestCount, getRequestPerSecond(),
+				getLatency(50), getLatency(90), getLatency(99), getLatency(99.9), getLatency(100));
+		}
+	}
+	
+	private final MockServer server;
+	
+	private int    requestCount = 10_000;
+	private int    threadCount  = 50;
+	private String path         = "/";
+	
+	public Benchmark(MockServer server) {
+		this.server = server;
+	}
+	
+	public Benchmark withRequestCount(int newValue) {
+		requestCount = newValue;
+		return this;
+	}
+	public Benchmark withThreadCount(int newValue) {
+		threadCount = newValue;
+		return this;
+	}
+	public Benchmark withPath(String newValue) {
+		path = newValue;
+		return this;
+	}
+	
+	private RequesterBuilder getRequesterBuilder() {
+		return RequesterBuilder.custom()
+			.setMaxTotal(threadCount)
+			.setDefaultMaxPerRoute(threadCount);
+	}
+	
+	// each request has unique query to avoid coalescing of request
+	private URI getURI(int i) {
+		String separator = path.contains("?") ? "&" : "?";
+		return server.getURI(String.format("%s%sn=%d", path, separator, i));
+	}
+	
+	public Report runDownload(String name, Download download) {
+		long[]        latencyArray = new long[requestCount];
+		AtomicInteger successCount = new AtomicInteger();
+		
+		RequesterBuilder requesterBuilder = getRequesterBuilder();
+		download.setRequesterBuilder(requesterBuilder);
+		download.setThreadCount(threadCount);
+		download.setMaxPerHost(threadCount);
+		download.setCoalescer(null);
+		download.setProgressInterval(Integer.MAX_VALUE);
+		for(int i = 0; i < requestCount; i++) {
+			final int index = i;
+			Task[] task = new Task[1];
+			task[0] = Task.get(result -> {
+				latencyArray[index] = System.nanoTime() - task[0].sendTime;
+				if (result.code == 200) successCount.incrementAndGet();
+			}, getURI(i));
+			download.addTask(task[0]);
+		}
+		
+		long startTime = System.nanoTime();
+		download.startAndWait();
+		long elapsed = System.nanoTime() - startTime;
+		requesterBuilder.close();
+		
+		return new Report(name, requestCount, successCount.get(), elapsed, Arrays.stream(latencyArray).filter(o -> o != 0).toArray());
+	}
+	
+	public Report runHttpUtil() {
+		long[]        latencyArray = new long[requestCount];
+		AtomicInteger successCount = new AtomicInteger();
+		AtomicInteger nextIndex    = new AtomicInteger();
+		AtomicLong    failCount    = new AtomicLong();
+		
+		RequesterBuilder requesterBuilder = getRequesterBuilder();
+		HttpUtil         httpUtil         = HttpUtil.getInstance(requesterBuilder);
+		
+		ExecutorService executor  = Executors.newFixedThreadPool(threadCount);
+		long            startTime = System.nanoTime();
+		for(int i = 0; i < threadCount; i++) {
+			executor.execute(() -> {
+				for(;;) {
+					int index = nextIndex.getAndIncrement();
+					if (requestCount <= index) break;
+					
+					long sendTime = System.nanoTime();
+					try {
+						httpUtil.downloadRaw(getURI(index).toString());
+						latencyArray[index] = System.nanoTime() - sendTime;
+						successCount.incrementAndGet();
+					} catch (UnexpectedException e) {
+						failCount.incrementAndGet();
+					}
+				}
+			});
+		}
+		try {
+			executor.shutdown();
+			executor.awaitTermination(1, TimeUnit.DAYS);
+		} catch (InterruptedException e) {
+			String exceptionName = e.getClass().getSimpleName();
+			logger.error("{} {}", exceptionName, e);
+			throw new UnexpectedException(exceptionName, e);
+		}
+		long elapsed = System.nanoTime() - startTime;
+		requesterBuilder.close();
+		if (failCount.get() != 0) logger.warn("failCount  {}", failCount.get());
+		
+		return new Report("HttpUtil", requestCount, successCount.get(), elapsed, Arrays.stream(latencyArray).filter(o -> o != 0).toArray());
+	}
+	
+	public void runAll() {
+		logger.info("benchmark  {}  requestCount {}  threadCount {}  path {}", server.getProtocol(), requestCount, threadCount, path);
+		// warm up jit and connection
+		new Benchmark(server).withRequestCount(Math.min(1000, requestCount)).withThreadCount(threadCount).withPath(path).runHttpUtil();
+		
+		logger.info("{}", runDownload("DownloadSync", new DownloadSync()));
+		logger.info("{}", runDownload("DownloadAsync", new DownloadAsync()));
+		logger.info("{}", runHttpUtil());
+	}
+	
+	public static void main(String[] args) {
+		logger.info("START");
+		
+		int      requestCount = args.length < 1 ? 10_000 : Integer.parseInt(args[0]);
+		int      threadCount  = args.length < 2 ? 50     : Integer.parseInt(args[1]);
+		Duration latency      = args.length < 3 ? Duration.ofMillis(10) : Duration.ofMillis(Integer.parseInt(args[2]));
+		
+		for(var protocol: MockServer.Protocol.values()) {
+			MockServer server = MockServer.getInstance(protocol).withLatency(Duration.ZERO, latency).start();
+			try {
+				new Benchmark(server).withRequestCount(requestCount).withThreadCount(threadCount).runAll();
+			} finally {
+				server.stop();
+			}
+		}
+		
+		logger.info("STOP");
+	}
+}
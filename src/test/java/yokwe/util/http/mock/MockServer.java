@@ -0,0 +1,432 @@
+package yokwe.util.http.mock;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.hc.core5.http.ClassicHttpRequest;
+import org.apache.hc.core5.http.ClassicHttpResponse;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.ExceptionListener;
+import org.apache.hc.core5.http.HttpConnection;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.Message;
+import org.apache.hc.core5.http.URIScheme;
+import org.apache.hc.core5.http.impl.bootstrap.HttpAsyncServer;
+import org.apache.hc.core5.http.impl.bootstrap.HttpServer;
+import org.apache.hc.core5.http.impl.bootstrap.ServerBootstrap;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.http.nio.AsyncRequestConsumer;
+import org.apache.hc.core5.http.nio.AsyncServerRequestHandler;
+import org.apache.hc.core5.http.nio.entity.AsyncEntityProducers;
+import org.apache.hc.core5.http.nio.entity.BasicAsyncEntityConsumer;
+import org.apache.hc.core5.http.nio.support.AsyncResponseBuilder;
+import org.apache.hc.core5.http.nio.support.BasicRequestConsumer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.http2.impl.nio.bootstrap.H2ServerBootstrap;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.hc.core5.reactor.ListenerEndpoint;
+
+import yokwe.util.FileUtil;
+import yokwe.util.UnexpectedException;
+import yokwe.util.http.TraceWriter;
+
+//
+// Embedded http server to test and benchmark DownloadSync, DownloadAsync and HttpUtil without real site
+//   http1  classic blocking server of HTTP/1.1
+//   h2c    async server. accepts both HTTP/1.1 and HTTP/2 without TLS (prior knowledge)
+//
+// Path of request
+//   /status/NNN  returns status NNN
+//   /bytes/NNN   returns NNN bytes of body
+//   otherwise    returns traced response of same path if replay is enabled, or body of bodySize bytes
+//
+public final class MockServer {
+	private static final org.slf4j.Logger logger = yokwe.util.LoggerUtil.getLogger();
+	
+	public enum Protocol {
+		HTTP1, H2C
+	}
+	
+	// error injection profile. each value is probability of error in range of [0, 1]
+	public static final class ErrorProfile {
+		public static final ErrorProfile NONE = new ErrorProfile(0, 0, 0);
+		
+		public final double rate429;   // 429 Too Many Requests with Retry-After
+		public final double rate503;   // 503 Service Unavailable
+		public final double rateReset; // close connection without response
+		
+		public ErrorProfile(double rate429, double rate503, double rateReset) {
+			this.rate429   = rate429;
+			this.rate503   = rate503;
+			this.rateReset = rateReset;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format("{429 %.3f  503 %.3f  reset %.3f}", rate429, rate503, rateReset);
+		}
+	}
+	
+	private static final class Response {
+		static final Response RESET = new Response(0, null, null);
+		
+		final int         code;
+		final byte[]      body;
+		final ContentType contentType;
+		
+		Response(int code, byte[] body, ContentType contentType) {
+			this.code        = code;
+			this.body        = body;
+			this.contentType = contentType;
+		}
+	}
+	
+	private static final String RETRY_AFTER = "1";
+	
+	public static MockServer getInstance(Protocol protocol) {
+		return new MockServer(protocol);
+	}
+	
+	private final Protocol protocol;
+	
+	private int          port         = 0; // 0 means ephemeral port
+	private Duration     latencyMin   = Duration.ZERO;
+	private Duration     latencyMax   = Duration.ZERO;
+	private ErrorProfile errorProfile = ErrorProfile.NONE;
+	private byte[]       defaultBody  = new byte[1024];
+	private int          threadCount  = Runtime.getRuntime().availableProcessors();
+	
+	// key is path and query of traced url
+	private final Map<String, Response> replayMap = new HashMap<>();
+	
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong errorCount   = new AtomicLong();
+	
+	private HttpServer               httpServer  = null;
+	private HttpAsyncServer          asyncServer = null;
+	private ScheduledExecutorService scheduler   = null;
+	private int                      localPort   = 0;
+	
+	private MockServer(Protocol protocol) {
+		this.protocol = protocol;
+		Arrays.fill(defaultBody, (byte)'a');
+	}
+	
+	public MockServer withPort(int newValue) {
+		port = newValue;
+		return this;
+	}
+	public MockServer withLatency(Duration newValue) {
+		return withLatency(newValue, newValue);
+	}
+	// latency of each response is random value in range of [min, max]
+	public MockServer withLatency(Duration min, Duration max) {
+		latencyMin = min;
+		latencyMax = max;
+		return this;
+	}
+	public MockServer withErrorProfile(ErrorProfile newValue) {
+		errorProfile = newValue;
+		return this;
+	}
+	public MockServer withBodySize(int newValue) {
+		defaultBody = new byte[newValue];
+		Arrays.fill(defaultBody, (byte)'a');
+		return this;
+	}
+	public MockServer withThreadCount(int newValue) {
+		threadCount = newValue;
+		return this;
+	}
+	// load trace captured by HttpUtil.withTrace. see TraceWriter for layout of traceDir
+	public MockServer withReplay(String traceDir) {
+		File indexFile = new File(traceDir, TraceWriter.INDEX);
+		if (!indexFile.canRead()) {
+			logger.error("Unexpected trace dir");
+			logger.error("  indexFile  {}", indexFile.getPath());
+			throw new UnexpectedException("Unexpected trace dir");
+		}
+		
+		// group line of index by archive
+		Map<String, List<String[]>> archiveMap = new TreeMap<>();
+		for(var line: FileUtil.read().file(indexFile).split("\n")) {
+			String[] fields = line.split("\t", 5);
+			if (fields.length != 5) continue;
+			archiveMap.computeIfAbsent(fields[4], o -> new ArrayList<>()).add(fields);
+		}
+		
+		for(var entry: archiveMap.entrySet()) {
+			File archiveFile = new File(traceDir, entry.getKey());
+			if (!archiveFile.canRead()) {
+				// archive is removed by size cap of TraceWriter
+				logger.warn("no trace archive  {}", archiveFile.getPath());
+				continue;
+			}
+			try (ZipFile zipFile = new ZipFile(archiveFile)) {
+				for(var fields: entry.getValue()) {
+					ZipEntry zipEntry = zipFile.getEntry(fields[0]);
+					if (zipEntry == null) continue;
+					try (InputStream is = zipFile.getInputStream(zipEntry)) {
+						String      key         = getKey(new URI(fields[3]));
+						int         code        = Integer.parseInt(fields[1]);
+						ContentType contentType = fields[2].isEmpty() ? ContentType.APPLICATION_OCTET_STREAM : ContentType.parse(fields[2]);
+						// later trace of same url overrides earlier trace
+						replayMap.put(key, new Response(code, is.readAllBytes(), contentType));
+					} catch (URISyntaxException | NumberFormatException e) {
+						String exceptionName = e.getClass().getSimpleName();
+						logger.warn("{} {}  {}", exceptionName, e.getMessage(), String.join("\t", fields));
+					}
+				}
+			} catch (IOException e) {
+				// archive in use is not readable until TraceWriter closes it
+				String exceptionName = e.getClass().getSimpleName();
+				logger.warn("{} {}  {}", exceptionName, e.getMessage(), archiveFile.getPath());
+			}
+		}
+		logger.info("replay  {}  {}", replayMap.size(), traceDir);
+		return this;
+	}
+	
+	public Protocol getProtocol() {
+		return protocol;
+	}
+	public int getPort() {
+		return localPort;
+	}
+	public URI getURI(String path) {
+		return URI.create(String.format("http://localhost:%d%s", localPort, path));
+	}
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+	public long getErrorCount() {
+		return errorCount.get();
+	}
+	
+	public MockServer start() {
+		try {
+			switch(protocol) {
+			case HTTP1:
+				httpServer = ServerBootstrap.bootstrap()
+					.setListenerPort(port)
+					.setExceptionListener(new ExceptionListener() {
+						@Override
+						public void onError(Exception e) {
+							logger.debug("onError {}", e.toString());
+						}
+						@Override
+						public void onError(HttpConnection connection, Exception e) {
+							logger.debug("onError {}", e.toString());
+						}
+					})
+					.register("*", this::handle)
+					.create();
+				httpServer.start();
+				localPort = httpServer.getLocalPort();
+				break;
+			case H2C:
+				scheduler = Executors.newScheduledThreadPool(threadCount, r -> {
+					Thread thread = new Thread(r, "MOCK-SCHEDULER");
+					thread.setDaemon(true);
+					return thread;
+				});
+				asyncServer = H2ServerBootstrap.bootstrap()
+					.setIOReactorConfig(IOReactorConfig.custom().setIoThreadCount(threadCount).build())
+					.setVersionPolicy(HttpVersionPolicy.NEGOTIATE)
+					.register("*", new AsyncHandler())
+					.create();
+				asyncServer.start();
+				ListenerEndpoint endpoint = asyncServer.listen(new InetSocketAddress(port), URIScheme.HTTP).get();
+				localPort = ((InetSocketAddress)endpoint.getAddress()).getPort();
+				break;
+			default:
+				logger.error("Unexpected protocol");
+				logger.error("  protocol  {}", protocol);
+				throw new UnexpectedException("Unexpected protocol");
+			}
+		} catch (IOException | InterruptedException | ExecutionException e) {
+			String exceptionName = e.getClass().getSimpleName();
+			logger.error("{} {}", exceptionName, e);
+			throw new UnexpectedException(exceptionName, e);
+		}
+		logger.info("start  {}  port {}  latency {} - {}  error {}", protocol, localPort, latencyMin, latencyMax, errorProfile);
+		return this;
+	}
+	public void stop() {
+		if (httpServer != null) {
+			httpServer.close(CloseMode.GRACEFUL);
+			httpServer = null;
+		}
+		if (asyncServer != null) {
+			asyncServer.close(CloseMode.GRACEFUL);
+			asyncServer = null;
+		}
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+		logger.info("stop   {}  request {}  error {}", protocol, requestCount.get(), errorCount.get());
+	}
+	
+	
+	//
+	// response of request
+	//
+	private static String getKey(URI uri) {
+		String query = uri.getRawQuery();
+		return query == null ? uri.getRawPath() : uri.getRawPath() + "?" + query;
+	}
+	private Response getResponse(String requestUri) {
+		requestCount.incrementAndGet();
+		
+		// error injection
+		{
+			double value = ThreadLocalRandom.current().nextDouble();
+			if (value < errorProfile.rateReset) {
+				errorCount.incrementAndGet();
+				return Response.RESET;
+			}
+			value -= errorProfile.rateReset;
+			if (value < errorProfile.rate429) {
+				errorCount.incrementAndGet();
+				return new Response(HttpStatus.SC_TOO_MANY_REQUESTS, null, null);
+			}
+			value -= errorProfile.rate429;
+			if (value < errorProfile.rate503) {
+				errorCount.incrementAndGet();
+				return new Response(HttpStatus.SC_SERVICE_UNAVAILABLE, null, null);
+			}
+		}
+		
+		URI    uri  = URI.create(requestUri);
+		String path = uri.getRawPath();
+		try {
+			if (path.startsWith("/status/")) {
+				return new Response(Integer.parseInt(path.substring("/status/".length())), null, null);
+			}
+			if (path.startsWith("/bytes/")) {
+				byte[] body = new byte[Integer.parseInt(path.substring("/bytes/".length()))];
+				Arrays.fill(body, (byte)'a');
+				return new Response(HttpStatus.SC_OK, body, ContentType.APPLICATION_OCTET_STREAM);
+			}
+		} catch (NumberFormatException e) {
+			return new Response(HttpStatus.SC_BAD_REQUEST, null, null);
+		}
+		
+		if (!replayMap.isEmpty()) {
+			Response response = replayMap.get(getKey(uri));
+			return response == null ? new Response(HttpStatus.SC_NOT_FOUND, null, null) : response;
+		}
+		
+		return new Response(HttpStatus.SC_OK, defaultBody, ContentType.TEXT_PLAIN);
+	}
+	private long getLatencyMillis() {
+		long min = latencyMin.toMillis();
+		long max = latencyMax.toMillis();
+		return max <= min ? min : ThreadLocalRandom.current().nextLong(min, max + 1);
+	}
+	
+	
+	//
+	// http1
+	//
+	private void handle(ClassicHttpRequest request, ClassicHttpResponse response, HttpContext context) throws HttpException, IOException {
+		if (request.getEntity() != null) {
+			EntityUtils.consume(request.getEntity());
+		}
+		
+		Response mockResponse = getResponse(request.getRequestUri());
+		long     latency      = getLatencyMillis();
+		if (latency != 0) {
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		if (mockResponse == Response.RESET) {
+			// connection is closed by HttpServer when handler throws IOException
+			throw new SocketException("injected connection reset");
+		}
+		
+		response.setCode(mockResponse.code);
+		if (mockResponse.code == HttpStatus.SC_TOO_MANY_REQUESTS) {
+			response.setHeader("Retry-After", RETRY_AFTER);
+		}
+		if (mockResponse.body != null) {
+			response.setEntity(new ByteArrayEntity(mockResponse.body, mockResponse.contentType));
+		}
+	}
+	
+	
+	//
+	// h2c
+	//
+	private final class AsyncHandler implements AsyncServerRequestHandler<Message<HttpRequest, byte[]>> {
+		@Override
+		public AsyncRequestConsumer<Message<HttpRequest, byte[]>> prepare(HttpRequest request, EntityDetails entityDetails, HttpContext context) throws HttpException {
+			return new BasicRequestConsumer<>(entityDetails == null ? null : new BasicAsyncEntityConsumer());
+		}
+		
+		@Override
+		public void handle(Message<HttpRequest, byte[]> message, ResponseTrigger responseTrigger, HttpContext context) throws HttpException, IOException {
+			Response mockResponse = getResponse(message.getHead().getRequestUri());
+			long     latency      = getLatencyMillis();
+			
+			if (mockResponse == Response.RESET) {
+				// stream or connection is closed when handler throws IOException
+				throw new SocketException("injected connection reset");
+			}
+			
+			AsyncResponseBuilder builder = AsyncResponseBuilder.create(mockResponse.code);
+			if (mockResponse.code == HttpStatus.SC_TOO_MANY_REQUESTS) {
+				builder.setHeader("Retry-After", RETRY_AFTER);
+			}
+			if (mockResponse.body != null) {
+				builder.setEntity(AsyncEntityProducers.create(mockResponse.body, mockResponse.contentType));
+			}
+			
+			// don't block io reactor thread. send response from scheduler
+			Runnable submit = () -> {
+				try {
+					responseTrigger.submitResponse(builder.build(), context);
+				} catch (HttpException | IOException e) {
+					String exceptionName = e.getClass().getSimpleName();
+					logger.warn("{} {}", exceptionName, e.getMessage());
+				}
+			};
+			if (latency == 0) {
+				submit.run();
+			} else {
+				scheduler.schedule(submit, latency, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+}
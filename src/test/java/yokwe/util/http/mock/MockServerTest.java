@@ -0,0 +1,116 @@
+package yokwe.util.http.mock;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import yokwe.util.UnexpectedException;
+import yokwe.util.http.Coalescer;
+import yokwe.util.http.Download;
+import yokwe.util.http.DownloadAsync;
+import yokwe.util.http.DownloadSync;
+import yokwe.util.http.HttpUtil;
+import yokwe.util.http.HttpUtilAsync;
+import yokwe.util.http.Result;
+import yokwe.util.http.Task;
+
+//
+// Run DownloadSync, DownloadAsync and HttpUtil against MockServer
+//
+public class MockServerTest {
+	private static MockServer server;
+	
+	@BeforeAll
+	public static void start() {
+		server = MockServer.getInstance(MockServer.Protocol.HTTP1).withBodySize(1000).start();
+	}
+	@AfterAll
+	public static void stop() {
+		server.stop();
+	}
+	
+	// returns result of each path
+	private static Map<String, Result> download(Download download, String... pathArray) {
+		Map<String, Result> map = new ConcurrentHashMap<>();
+		download.setThreadCount(2);
+		download.setCoalescer(null);
+		for(var path: pathArray) {
+			download.addTask(Task.get(o -> map.put(path, o), server.getURI(path)));
+		}
+		download.startAndWait();
+		return map;
+	}
+	private static void check(Map<String, Result> map) {
+		assertEquals(3, map.size());
+		
+		assertEquals(200,  map.get("/bytes/100").code);
+		assertEquals(100,  map.get("/bytes/100").body.length);
+		assertEquals(404,  map.get("/status/404").code);
+		assertEquals(200,  map.get("/").code);
+		assertEquals(1000, map.get("/").body.length);
+	}
+	
+	@Test
+	public void downloadSync() {
+		check(download(new DownloadSync(), "/bytes/100", "/status/404", "/"));
+	}
+	@Test
+	public void downloadAsync() {
+		check(download(new DownloadAsync(), "/bytes/100", "/status/404", "/"));
+	}
+	
+	@Test
+	public void coalesce() {
+		String path = "/bytes/10?coalesce";
+		
+		Map<Integer, Result> map = new ConcurrentHashMap<>();
+		// result of first request is memoized. other tasks of same request are not sent to server
+		Coalescer coalescer = new Coalescer(Duration.ofMinutes(1));
+		Download  download  = new DownloadSync().setThreadCount(1).setCoalescer(coalescer);
+		long      count     = server.getRequestCount();
+		for(int i = 0; i < 3; i++) {
+			final int index = i;
+			download.addTask(Task.get(o -> map.put(index, o), server.getURI(path)));
+		}
+		download.startAndWait();
+		
+		assertEquals(3, map.size());
+		assertEquals(1, server.getRequestCount() - count);
+		assertEquals(2, coalescer.getCoalescedCount());
+		for(var e: map.values()) {
+			assertEquals(200, e.code);
+			assertEquals(10,  e.body.length);
+		}
+	}
+	
+	@Test
+	public void httpUtil() {
+		byte[] body = HttpUtil.getInstance().downloadRaw(server.getURI("/bytes/20").toString());
+		assertNotNull(body);
+		assertEquals(20, body.length);
+	}
+	@Test
+	public void httpUtilAsync() {
+		HttpUtilAsync async = HttpUtil.getInstance().async().withRetryDelay(Duration.ofMillis(10));
+		
+		assertEquals(30, async.downloadRaw(server.getURI("/bytes/30").toString()).join().length);
+		// 404 completes with null
+		assertNull(async.download(server.getURI("/status/404").toString()).join());
+		// 503 completes exceptionally after retry is exhausted
+		long count = server.getRequestCount();
+		var  e     = assertThrows(CompletionException.class, () -> async.withRetryCount(2).download(server.getURI("/status/503").toString()).join());
+		assertInstanceOf(UnexpectedException.class, e.getCause());
+		assertEquals(3, server.getRequestCount() - count);
+	}
+}